@@ -4,52 +4,181 @@ import info.kgeorgiy.java.advanced.concurrent.ListIP;
 import info.kgeorgiy.java.advanced.mapper.ParallelMapper;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
 import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
  * This class provides methods for performing parallel computations on lists using multiple threads.
+ * <p>
+ * Every block is processed by indexing the source list directly, so lists that do not implement
+ * {@link RandomAccess} are copied into an array-backed list once before the computation starts.
  *
  * @author Pleshanov Pavel
  */
 public class IterativeParallelism implements ListIP {
+    /**
+     * Inputs smaller than this are processed in the calling thread when no mapper is given.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 64;
+
     private final ParallelMapper mapper;
+    private final int chunksPerThread;
+    private final ToLongFunction<Object> costHint;
 
+    /**
+     * Creates an instance that runs blocks on the given mapper.
+     *
+     * @param mapper the mapper to run blocks on
+     */
     public IterativeParallelism(ParallelMapper mapper) {
-        this.mapper = mapper;
+        this(mapper, 1, null);
     }
 
+    /**
+     * Creates an instance that runs blocks on a lazily created pool with one daemon thread per processor,
+     * shared by all such instances. Inputs of fewer than {@value #SEQUENTIAL_THRESHOLD} elements
+     * are processed in the calling thread.
+     */
     public IterativeParallelism() {
-        this.mapper = null;
+        this(null, 1, null);
+    }
+
+    /**
+     * Creates an instance with a custom partitioning strategy.
+     * <p>
+     * Every computation splits its input into {@code threads * chunksPerThread} contiguous blocks
+     * (or one block per element for shorter inputs). With more than one chunk per thread, threads that
+     * finish early pick up the remaining chunks from the mapper's queue, so slow elements do not
+     * leave the other threads idle.
+     *
+     * @param mapper          the mapper to run blocks on, or {@code null} to use the shared pool
+     *                        of {@link #IterativeParallelism()}
+     * @param chunksPerThread the number of blocks created for every requested thread
+     * @throws IllegalArgumentException if {@code chunksPerThread} is less than 1
+     */
+    public IterativeParallelism(ParallelMapper mapper, int chunksPerThread) {
+        this(mapper, chunksPerThread, null);
+    }
+
+    /**
+     * Creates an instance with a custom partitioning strategy that balances blocks by the total estimated
+     * cost of their elements instead of by their length, as described in {@link #IterativeParallelism(ParallelMapper, int)}.
+     *
+     * @param mapper          the mapper to run blocks on, or {@code null} to use the shared pool
+     *                        of {@link #IterativeParallelism()}
+     * @param chunksPerThread the number of blocks created for every requested thread
+     * @param elementType     the type of the elements the hint applies to; other elements cost {@code 1}
+     * @param costHint        the estimated relative cost of processing an element
+     * @param <E>             the type of the elements the hint applies to
+     * @throws IllegalArgumentException if {@code chunksPerThread} is less than 1
+     */
+    public <E> IterativeParallelism(ParallelMapper mapper, int chunksPerThread,
+                                    Class<E> elementType, ToLongFunction<? super E> costHint) {
+        this(mapper, chunksPerThread, value -> elementType.isInstance(value)
+                ? costHint.applyAsLong(elementType.cast(value))
+                : 1);
+    }
+
+    private IterativeParallelism(ParallelMapper mapper, int chunksPerThread, ToLongFunction<Object> costHint) {
+        if (chunksPerThread < 1) {
+            throw new IllegalArgumentException("The number of chunks per thread must be greater than 0.");
+        }
+        this.mapper = mapper;
+        this.chunksPerThread = chunksPerThread;
+        this.costHint = costHint;
+    }
+
+    private <U, R> R parallelFunc(int threads, List<?> values,
+                                  Function<Block, U> func,
+                                  Function<Stream<? extends U>, R> reducer) throws InterruptedException {
+        return reducer.apply(run(split(threads, values), func, values.size()).stream());
     }
 
-    private <T, U, R> R parallelFunc(int threads, List<? extends T> values,
-                                     Function<Stream<? extends T>, U> func,
-                                     Function<Stream<? extends U>, R> reducer) throws InterruptedException {
+    private List<Block> split(int threads, List<?> values) {
         if (threads < 1) {
             throw new IllegalArgumentException("The number of threads must be greater than 0.");
         }
+        int size = values.size();
+        int count = (int) Math.min(size, (long) threads * chunksPerThread);
+        List<Block> blocks = new ArrayList<>(count);
+        if (costHint == null) {
+            for (int i = 0; i < count; ++i) {
+                blocks.add(new Block((int) ((long) size * i / count), (int) ((long) size * (i + 1) / count)));
+            }
+            return blocks;
+        }
 
-        int blockCapacity = Math.max(1, values.size() / threads);
-        int index = 0;
-        List<Stream<? extends T>> blocks = new ArrayList<>();
-
-        while (index < values.size()) {
-            blocks.add(values.subList(index,
-                            index += blockCapacity + (((values.size() - index) % blockCapacity == 0) ? 0 : 1))
-                    .stream());
+        long[] prefix = new long[size + 1];
+        for (int i = 0; i < size; ++i) {
+            prefix[i + 1] = prefix[i] + Math.max(0, costHint.applyAsLong(values.get(i)));
+        }
+        int from = 0;
+        for (int i = 1; i <= count; ++i) {
+            long target = (long) ((double) prefix[size] * i / count);
+            int to = from + 1;
+            while (to < size - (count - i) && prefix[to] < target) {
+                ++to;
+            }
+            blocks.add(new Block(from, i == count ? size : to));
+            from = to;
         }
-        List<U> result;
-        if (mapper != null) {
-            result = mapper.map(func, blocks);
-        } else {
-            try (ParallelMapper temporaryMapper = new ParallelMapperImpl(blocks.size())) {
-                result = temporaryMapper.map(func, blocks);
+        return blocks;
+    }
+
+    private <A, U> List<U> run(List<A> args, Function<A, U> func, int size) throws InterruptedException {
+        if (args.size() > 1) {
+            if (mapper != null) {
+                return mapper.map(func, args);
+            }
+            if (size >= SEQUENTIAL_THRESHOLD && !SharedMapper.INSTANCE.isWorkerThread()) {
+                return SharedMapper.INSTANCE.map(func, args);
             }
         }
-        return reducer.apply(result.stream());
+        List<U> result = new ArrayList<>(args.size());
+        for (A arg : args) {
+            result.add(func.apply(arg));
+        }
+        return result;
+    }
+
+    private static <T> List<? extends T> randomAccess(List<? extends T> values) {
+        return values instanceof RandomAccess ? values : new ArrayList<>(values);
+    }
+
+    /**
+     * Returns a mutable list of the elements of the array, like the lists collected by streams.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> toMutableList(Object[] array) {
+        return new ArrayList<>((List<T>) Arrays.asList(array));
+    }
+
+    private <T> int find(int threads, List<? extends T> values, Predicate<? super T> predicate,
+                         boolean first) throws InterruptedException {
+        final List<? extends T> list = randomAccess(values);
+        final AtomicInteger found = new AtomicInteger(list.size());
+        parallelFunc(threads, list,
+                block -> {
+                    // Blocks still waiting in the mapper's queue return here at once when the answer is known
+                    for (int i = block.from(); i < block.to(); ++i) {
+                        int bound = found.get();
+                        if (first ? bound <= i : bound < list.size()) {
+                            break;
+                        }
+                        if (predicate.test(list.get(i))) {
+                            found.accumulateAndGet(i, Math::min);
+                            break;
+                        }
+                    }
+                    return null;
+                },
+                stream -> null);
+        return found.get() == list.size() ? -1 : found.get();
     }
 
     /**
@@ -62,9 +191,20 @@ public class IterativeParallelism implements ListIP {
      */
     @Override
     public String join(int threads, List<?> values) throws InterruptedException {
-        return parallelFunc(threads, values,
-                stream -> stream.map(Object::toString).collect(Collectors.joining()),
-                stream -> stream.collect(Collectors.joining()));
+        final List<?> list = randomAccess(values);
+        return parallelFunc(threads, list,
+                block -> {
+                    StringBuilder builder = new StringBuilder();
+                    for (int i = block.from(); i < block.to(); ++i) {
+                        builder.append(list.get(i));
+                    }
+                    return builder;
+                },
+                stream -> {
+                    StringBuilder builder = new StringBuilder();
+                    stream.forEach(builder::append);
+                    return builder.toString();
+                });
     }
 
     /**
@@ -73,14 +213,34 @@ public class IterativeParallelism implements ListIP {
      * @param threads   the number of threads to use for the parallel execution
      * @param values    the list of values to filter
      * @param predicate the predicate to apply to each element
-     * @return a list containing only the elements from the input list that satisfy the given predicate
+     * @return a new mutable list containing only the elements from the input list that satisfy the given predicate
      * @throws InterruptedException if any thread is interrupted during the execution of this method
      */
     @Override
     public <T> List<T> filter(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        return parallelFunc(threads, values,
-                stream -> stream.filter(predicate).collect(Collectors.toList()),
-                stream -> stream.flatMap(Collection::stream).collect(Collectors.toList()));
+        final List<? extends T> list = randomAccess(values);
+        return parallelFunc(threads, list,
+                block -> {
+                    Object[] items = new Object[block.to() - block.from()];
+                    int size = 0;
+                    for (int i = block.from(); i < block.to(); ++i) {
+                        T value = list.get(i);
+                        if (predicate.test(value)) {
+                            items[size++] = value;
+                        }
+                    }
+                    return new Segment(items, size);
+                },
+                stream -> {
+                    List<? extends Segment> segments = stream.toList();
+                    Object[] result = new Object[segments.stream().mapToInt(Segment::size).sum()];
+                    int offset = 0;
+                    for (Segment segment : segments) {
+                        System.arraycopy(segment.items(), 0, result, offset, segment.size());
+                        offset += segment.size();
+                    }
+                    return toMutableList(result);
+                });
     }
 
     /**
@@ -89,14 +249,21 @@ public class IterativeParallelism implements ListIP {
      * @param threads the number of threads to use for the parallel execution
      * @param values  the list of values to filter
      * @param f       the function to apply to each element of the input list
-     * @return a new list containing the results of applying the given function to each element of the input list
+     * @return a new mutable list containing the results of applying the given function to each element of the input list
      * @throws InterruptedException if any thread is interrupted during the execution of this method
      */
     @Override
     public <T, U> List<U> map(int threads, List<? extends T> values, Function<? super T, ? extends U> f) throws InterruptedException {
-        return parallelFunc(threads, values,
-                stream -> stream.map(f).collect(Collectors.toList()),
-                stream -> stream.flatMap(Collection::stream).collect(Collectors.toList()));
+        final List<? extends T> list = randomAccess(values);
+        final Object[] result = new Object[list.size()];
+        return parallelFunc(threads, list,
+                block -> {
+                    for (int i = block.from(); i < block.to(); ++i) {
+                        result[i] = f.apply(list.get(i));
+                    }
+                    return null;
+                },
+                stream -> toMutableList(result));
     }
 
     /**
@@ -110,8 +277,18 @@ public class IterativeParallelism implements ListIP {
      */
     @Override
     public <T> T maximum(int threads, List<? extends T> values, Comparator<? super T> comparator) throws InterruptedException {
-        return parallelFunc(threads, values,
-                stream -> stream.max(comparator).orElseThrow(),
+        final List<? extends T> list = randomAccess(values);
+        return parallelFunc(threads, list,
+                block -> {
+                    T max = list.get(block.from());
+                    for (int i = block.from() + 1; i < block.to(); ++i) {
+                        T value = list.get(i);
+                        if (comparator.compare(value, max) > 0) {
+                            max = value;
+                        }
+                    }
+                    return max;
+                },
                 stream -> stream.max(comparator).orElseThrow());
     }
 
@@ -131,6 +308,7 @@ public class IterativeParallelism implements ListIP {
 
     /**
      * Returns {@code true} if the predicate matches all elements.
+     * Stops scanning in every thread as soon as a non-matching element is found.
      *
      * @param threads   the number of threads to use for the parallel execution
      * @param values    the list of values to filter
@@ -140,13 +318,12 @@ public class IterativeParallelism implements ListIP {
      */
     @Override
     public <T> boolean all(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        return parallelFunc(threads, values,
-                stream -> stream.allMatch(predicate),
-                stream -> stream.allMatch(Boolean::valueOf));
+        return find(threads, values, predicate.negate(), false) < 0;
     }
 
     /**
      * Returns {@code true} if the predicate matches any elements.
+     * Stops scanning in every thread as soon as a matching element is found.
      *
      * @param threads   the number of threads to use for the parallel execution
      * @param values    the list of values to filter
@@ -156,7 +333,7 @@ public class IterativeParallelism implements ListIP {
      */
     @Override
     public <T> boolean any(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        return !all(threads, values, predicate.negate());
+        return find(threads, values, predicate, false) >= 0;
     }
 
     /**
@@ -170,8 +347,339 @@ public class IterativeParallelism implements ListIP {
      */
     @Override
     public <T> int count(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        return parallelFunc(threads, values,
-                stream -> (int) stream.filter(predicate).count(),
-                stream -> stream.mapToInt(Integer::valueOf).sum());
+        final List<? extends T> list = randomAccess(values);
+        return parallelFunc(threads, list,
+                block -> {
+                    int count = 0;
+                    for (int i = block.from(); i < block.to(); ++i) {
+                        if (predicate.test(list.get(i))) {
+                            ++count;
+                        }
+                    }
+                    return count;
+                },
+                stream -> stream.mapToInt(Integer::intValue).sum());
+    }
+
+    /**
+     * Returns the first element of the list that satisfies the given predicate.
+     * Threads stop scanning as soon as an earlier matching element is known.
+     * Lists that may contain {@code null} matches should be searched with {@link #findFirstIndex}.
+     *
+     * @param threads   the number of threads to use for the parallel execution
+     * @param values    the list of values to search
+     * @param predicate the predicate to apply to each element
+     * @return the first matching element, or an empty {@code Optional} if there is none
+     * @throws NullPointerException if the first matching element is {@code null}
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> Optional<T> findFirst(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        return found(values, findFirstIndex(threads, values, predicate));
+    }
+
+    /**
+     * Returns any element of the list that satisfies the given predicate.
+     * Threads stop scanning as soon as any matching element is found.
+     * Lists that may contain {@code null} matches should be searched with {@link #findAnyIndex}.
+     *
+     * @param threads   the number of threads to use for the parallel execution
+     * @param values    the list of values to search
+     * @param predicate the predicate to apply to each element
+     * @return a matching element, or an empty {@code Optional} if there is none
+     * @throws NullPointerException if the found matching element is {@code null}
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> Optional<T> findAny(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        return found(values, findAnyIndex(threads, values, predicate));
+    }
+
+    /**
+     * Returns the index of the first element of the list that satisfies the given predicate.
+     * Threads stop scanning as soon as an earlier matching element is known.
+     *
+     * @param threads   the number of threads to use for the parallel execution
+     * @param values    the list of values to search
+     * @param predicate the predicate to apply to each element
+     * @return the index of the first matching element, or {@code -1} if there is none
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> int findFirstIndex(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        return find(threads, values, predicate, true);
+    }
+
+    /**
+     * Returns the index of any element of the list that satisfies the given predicate.
+     * Threads stop scanning as soon as any matching element is found.
+     *
+     * @param threads   the number of threads to use for the parallel execution
+     * @param values    the list of values to search
+     * @param predicate the predicate to apply to each element
+     * @return the index of a matching element, or {@code -1} if there is none
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> int findAnyIndex(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        return find(threads, values, predicate, false);
+    }
+
+    private static <T> Optional<T> found(List<? extends T> values, int index) {
+        if (index < 0) {
+            return Optional.empty();
+        }
+        return Optional.of(Objects.requireNonNull(values.get(index),
+                () -> "The matching element at index " + index + " is null, use the index-based search instead."));
+    }
+
+    /**
+     * Returns the sum of the {@code long} values extracted from the elements of the list, without boxing them.
+     *
+     * @param threads the number of threads to use for the parallel execution
+     * @param values  the list of values to sum
+     * @param f       the function extracting a {@code long} value from each element
+     * @return the sum of the extracted values, or {@code 0} if the list is empty
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> long sumLong(int threads, List<? extends T> values, ToLongFunction<? super T> f) throws InterruptedException {
+        final List<? extends T> list = randomAccess(values);
+        return parallelFunc(threads, list,
+                block -> {
+                    long sum = 0;
+                    for (int i = block.from(); i < block.to(); ++i) {
+                        sum += f.applyAsLong(list.get(i));
+                    }
+                    return sum;
+                },
+                stream -> stream.mapToLong(Long::longValue).sum());
+    }
+
+    /**
+     * Returns the minimum of the {@code long} values extracted from the elements of the list, without boxing them.
+     *
+     * @param threads the number of threads to use for the parallel execution
+     * @param values  the list of values
+     * @param f       the function extracting a {@code long} value from each element
+     * @return the minimum extracted value, or an empty {@code OptionalLong} if the list is empty
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> OptionalLong minLong(int threads, List<? extends T> values, ToLongFunction<? super T> f) throws InterruptedException {
+        LongSummaryStatistics statistics = summaryStatistics(threads, values, f);
+        return statistics.getCount() == 0 ? OptionalLong.empty() : OptionalLong.of(statistics.getMin());
+    }
+
+    /**
+     * Returns the maximum of the {@code long} values extracted from the elements of the list, without boxing them.
+     *
+     * @param threads the number of threads to use for the parallel execution
+     * @param values  the list of values
+     * @param f       the function extracting a {@code long} value from each element
+     * @return the maximum extracted value, or an empty {@code OptionalLong} if the list is empty
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> OptionalLong maxLong(int threads, List<? extends T> values, ToLongFunction<? super T> f) throws InterruptedException {
+        LongSummaryStatistics statistics = summaryStatistics(threads, values, f);
+        return statistics.getCount() == 0 ? OptionalLong.empty() : OptionalLong.of(statistics.getMax());
+    }
+
+    /**
+     * Returns the count, sum, minimum and maximum of the {@code long} values extracted from the elements
+     * of the list in a single pass, without boxing them.
+     *
+     * @param threads the number of threads to use for the parallel execution
+     * @param values  the list of values
+     * @param f       the function extracting a {@code long} value from each element
+     * @return the statistics of the extracted values
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> LongSummaryStatistics summaryStatistics(int threads, List<? extends T> values,
+                                                       ToLongFunction<? super T> f) throws InterruptedException {
+        final List<? extends T> list = randomAccess(values);
+        return parallelFunc(threads, list,
+                block -> {
+                    LongSummaryStatistics statistics = new LongSummaryStatistics();
+                    for (int i = block.from(); i < block.to(); ++i) {
+                        statistics.accept(f.applyAsLong(list.get(i)));
+                    }
+                    return statistics;
+                },
+                stream -> {
+                    LongSummaryStatistics statistics = new LongSummaryStatistics();
+                    stream.forEach(statistics::combine);
+                    return statistics;
+                });
+    }
+
+    /**
+     * Reduces the list with the given associative operation.
+     *
+     * @param threads  the number of threads to use for the parallel execution
+     * @param values   the list of values to reduce
+     * @param identity the identity element of {@code operator}
+     * @param operator the associative operation
+     * @return the result of the reduction, or {@code identity} if the list is empty
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> T reduce(int threads, List<? extends T> values, T identity,
+                        BinaryOperator<T> operator) throws InterruptedException {
+        return mapReduce(threads, values, Function.identity(), identity, operator);
+    }
+
+    /**
+     * Maps every element of the list and reduces the results with the given associative operation.
+     *
+     * @param threads  the number of threads to use for the parallel execution
+     * @param values   the list of values to reduce
+     * @param lift     the function to apply to each element before the reduction
+     * @param identity the identity element of {@code operator}
+     * @param operator the associative operation
+     * @return the result of the reduction, or {@code identity} if the list is empty
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T, R> R mapReduce(int threads, List<? extends T> values, Function<? super T, ? extends R> lift,
+                              R identity, BinaryOperator<R> operator) throws InterruptedException {
+        final List<? extends T> list = randomAccess(values);
+        R result = identity;
+        for (R partial : run(split(threads, list), block -> {
+            R accumulator = identity;
+            for (int i = block.from(); i < block.to(); ++i) {
+                accumulator = operator.apply(accumulator, lift.apply(list.get(i)));
+            }
+            return accumulator;
+        }, list.size())) {
+            result = operator.apply(result, partial);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the inclusive prefix scan of the list with the given associative operation:
+     * the {@code i}-th element of the result is the reduction of the first {@code i + 1} elements.
+     * <p>
+     * Every block is reduced in parallel first, then every block is scanned in parallel
+     * starting from the reduction of all blocks before it.
+     *
+     * @param threads  the number of threads to use for the parallel execution
+     * @param values   the list of values to scan
+     * @param identity the identity element of {@code operator}
+     * @param operator the associative operation
+     * @return a new mutable list of prefix reductions
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> List<T> scan(int threads, List<? extends T> values, T identity,
+                            BinaryOperator<T> operator) throws InterruptedException {
+        final List<? extends T> list = randomAccess(values);
+        final List<Block> blocks = split(threads, list);
+        final List<T> offsets = new ArrayList<>(blocks.size());
+        T accumulator = identity;
+        for (T total : run(blocks, block -> {
+            T blockTotal = identity;
+            for (int i = block.from(); i < block.to(); ++i) {
+                blockTotal = operator.apply(blockTotal, list.get(i));
+            }
+            return blockTotal;
+        }, list.size())) {
+            offsets.add(accumulator);
+            accumulator = operator.apply(accumulator, total);
+        }
+
+        final Object[] result = new Object[list.size()];
+        run(IntStream.range(0, blocks.size()).boxed().toList(), index -> {
+            Block block = blocks.get(index);
+            T prefix = offsets.get(index);
+            for (int i = block.from(); i < block.to(); ++i) {
+                prefix = operator.apply(prefix, list.get(i));
+                result[i] = prefix;
+            }
+            return null;
+        }, list.size());
+        return toMutableList(result);
+    }
+
+    /**
+     * Returns the elements of the list sorted by the given comparator. The sort is stable.
+     * <p>
+     * Every block is sorted in parallel, then the sorted blocks are merged pairwise,
+     * with the merges of each round running in parallel.
+     *
+     * @param threads    the number of threads to use for the parallel execution
+     * @param values     the list of values to sort
+     * @param comparator the comparator to sort by
+     * @return a new mutable sorted list
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T> List<T> sort(int threads, List<? extends T> values,
+                            Comparator<? super T> comparator) throws InterruptedException {
+        final List<? extends T> list = randomAccess(values);
+        List<T[]> runs = run(split(threads, list), block -> {
+            @SuppressWarnings("unchecked")
+            T[] sorted = (T[]) list.subList(block.from(), block.to()).toArray();
+            Arrays.sort(sorted, comparator);
+            return sorted;
+        }, list.size());
+        while (runs.size() > 1) {
+            List<List<T[]>> pairs = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += 2) {
+                pairs.add(runs.subList(i, Math.min(i + 2, runs.size())));
+            }
+            runs = run(pairs, pair -> pair.size() == 1 ? pair.get(0) : merge(pair.get(0), pair.get(1), comparator),
+                    list.size());
+        }
+        return runs.isEmpty() ? new ArrayList<>() : toMutableList(runs.get(0));
+    }
+
+    private static <T> T[] merge(T[] left, T[] right, Comparator<? super T> comparator) {
+        T[] result = Arrays.copyOf(left, left.length + right.length);
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < result.length; ++k) {
+            if (j == right.length || i < left.length && comparator.compare(left[i], right[j]) <= 0) {
+                result[k] = left[i++];
+            } else {
+                result[k] = right[j++];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Groups the elements of the list by the given classifier.
+     * <p>
+     * Every block is grouped into its own map in parallel, then the maps are merged in block order,
+     * so the elements of every group keep their order in the list.
+     *
+     * @param threads    the number of threads to use for the parallel execution
+     * @param values     the list of values to group
+     * @param classifier the function mapping each element to its group key
+     * @return a map from group keys to the lists of elements of the groups
+     * @throws InterruptedException if any thread is interrupted during the execution of this method
+     */
+    public <T, K> Map<K, List<T>> groupingBy(int threads, List<? extends T> values,
+                                             Function<? super T, ? extends K> classifier) throws InterruptedException {
+        final List<? extends T> list = randomAccess(values);
+        final Map<K, List<T>> result = new HashMap<>();
+        for (Map<K, List<T>> partial : run(split(threads, list), block -> {
+            Map<K, List<T>> groups = new HashMap<>();
+            for (int i = block.from(); i < block.to(); ++i) {
+                T value = list.get(i);
+                groups.computeIfAbsent(classifier.apply(value), key -> new ArrayList<>()).add(value);
+            }
+            return groups;
+        }, list.size())) {
+            partial.forEach((key, group) -> result.merge(key, group, (merged, next) -> {
+                merged.addAll(next);
+                return merged;
+            }));
+        }
+        return result;
+    }
+
+    private static final class SharedMapper {
+        private static final ParallelMapperImpl INSTANCE =
+                new ParallelMapperImpl(Runtime.getRuntime().availableProcessors(), true,
+                        Integer.MAX_VALUE, ParallelMapperImpl.OverflowPolicy.BLOCK);
+    }
+
+    private record Block(int from, int to) {
+    }
+
+    private record Segment(Object[] items, int size) {
     }
 }
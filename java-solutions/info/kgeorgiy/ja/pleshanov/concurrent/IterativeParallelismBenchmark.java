@@ -0,0 +1,70 @@
+package info.kgeorgiy.ja.pleshanov.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares the partitioning strategies of {@link IterativeParallelism} on a list with a few slow elements.
+ * <p>
+ * The list holds {@code cheap} elements that cost nothing and, at its start, {@code slow} elements that
+ * take {@code latency} milliseconds each. Every strategy maps the list on a {@link ParallelMapperImpl}
+ * with {@code threads} threads: blocks of equal length, {@code chunks} blocks per thread,
+ * and blocks balanced by a cost hint. The first call of every strategy is a warmup.
+ * <p>
+ * Usage: {@code IterativeParallelismBenchmark threads cheap slow latency chunks [runs]}.
+ *
+ * @author Pleshanov Pavel
+ */
+public class IterativeParallelismBenchmark {
+    public static void main(final String[] args) {
+        if (args == null || args.length < 5) {
+            System.err.println("Usage: IterativeParallelismBenchmark threads cheap slow latency chunks [runs]");
+            return;
+        }
+        try {
+            final int threads = Integer.parseInt(args[0]);
+            final int cheap = Integer.parseInt(args[1]);
+            final int slow = Integer.parseInt(args[2]);
+            final long latency = Long.parseLong(args[3]);
+            final int chunks = Integer.parseInt(args[4]);
+            final int runs = args.length > 5 ? Integer.parseInt(args[5]) : 3;
+
+            final List<Long> costs = new ArrayList<>(slow + cheap);
+            for (int i = 0; i < slow + cheap; ++i) {
+                costs.add(i < slow ? latency : 0);
+            }
+            try (final ParallelMapperImpl mapper = new ParallelMapperImpl(threads)) {
+                run("equal blocks", new IterativeParallelism(mapper), threads, costs, runs);
+                run(chunks + " chunks per thread", new IterativeParallelism(mapper, chunks), threads, costs, runs);
+                run("cost hint", new IterativeParallelism(mapper, 1, Long.class, cost -> 1 + 1000 * cost),
+                        threads, costs, runs);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final IllegalArgumentException e) {
+            System.err.println("Wrong arguments: " + e.getMessage());
+        }
+    }
+
+    private static void run(final String strategy, final IterativeParallelism parallelism, final int threads,
+                            final List<Long> costs, final int runs) throws InterruptedException {
+        parallelism.map(threads, costs, IterativeParallelismBenchmark::work);
+        for (int run = 1; run <= runs; ++run) {
+            final long start = System.nanoTime();
+            parallelism.map(threads, costs, IterativeParallelismBenchmark::work);
+            System.out.printf("%s, run %d: %d ms%n", strategy, run,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private static long work(final long cost) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(cost);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return cost;
+    }
+}
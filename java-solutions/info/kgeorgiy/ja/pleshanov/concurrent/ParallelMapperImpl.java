@@ -3,17 +3,64 @@ package info.kgeorgiy.ja.pleshanov.concurrent;
 import info.kgeorgiy.java.advanced.mapper.ParallelMapper;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 /**
  * This class implements of {@link ParallelMapper} interface that allows to apply a function to elements
  * of a given list in parallel.
+ * <p>
+ * Tasks wait for a free thread in a queue, which may be bounded: what happens to a {@code map} call
+ * that does not fit into the queue is decided by the {@link OverflowPolicy}. Tasks are created lazily,
+ * only when they are put into the queue, so a call over a long list takes memory for its results,
+ * not for a task per element. Once the mapper is closed, tasks that have not been started are discarded
+ * and every {@code map} call waiting for them, as well as every later one,
+ * fails with a {@link RejectedExecutionException}.
  *
  * @author Pleshanov Pavel
  */
 public class ParallelMapperImpl implements ParallelMapper {
-    private final Queue<Runnable> tasks;
+    private final Queue<Task> tasks;
+    /** Calls with elements not put into the queue yet, guarded by {@code tasks}. */
+    private final Queue<Job> backlog = new ArrayDeque<>();
     private final List<Thread> threadsList;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    /** Calls waiting for free space with {@link OverflowPolicy#BLOCK}, guarded by {@code tasks}. */
+    private int blocked;
+    private boolean closed;
+    private volatile ParallelMapperMetrics metrics;
+
+    /**
+     * What a {@code map} call does when the task queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Makes the calling thread wait until all elements fit into the queue, so a call returns,
+         * even from {@code mapAsync}, only after its last element has been queued.
+         * If the calling thread is interrupted while waiting, the elements not queued yet are cancelled.
+         */
+        BLOCK,
+        /**
+         * Keeps the elements that do not fit with the call and queues them as the workers free space.
+         * The calling thread does not wait for that, so the number of pending calls is not bounded.
+         */
+        QUEUE,
+        /**
+         * Fails the elements that do not fit with a {@link RejectedExecutionException}.
+         */
+        REJECT,
+        /**
+         * Processes the elements that do not fit in the calling thread, so a call returns,
+         * even from {@code mapAsync}, only after those elements have been processed.
+         */
+        CALLER_RUNS
+    }
 
     /**
      * Constructs a new instance of {@code ParallelMapperImpl} with a given number of threads.
@@ -22,33 +69,130 @@ public class ParallelMapperImpl implements ParallelMapper {
      * @throws IllegalArgumentException if the number of threads is less than 1
      */
     public ParallelMapperImpl(int threads) {
+        this(threads, false, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Constructs a new instance of {@code ParallelMapperImpl} with a given number of threads
+     * and a bounded task queue.
+     *
+     * @param threads        the number of threads to be used
+     * @param capacity       the maximum number of tasks waiting in the queue
+     * @param overflowPolicy what to do with the tasks that do not fit into the queue
+     * @throws IllegalArgumentException if the number of threads or the capacity is less than 1
+     */
+    public ParallelMapperImpl(int threads, int capacity, OverflowPolicy overflowPolicy) {
+        this(threads, false, capacity, overflowPolicy);
+    }
+
+    /**
+     * Constructs a new instance of {@code ParallelMapperImpl} with a given number of threads,
+     * which do not prevent the JVM from exiting if {@code daemon} is set.
+     *
+     * @param threads        the number of threads to be used
+     * @param daemon         whether the threads should be daemon threads
+     * @param capacity       the maximum number of tasks waiting in the queue
+     * @param overflowPolicy what to do with the tasks that do not fit into the queue
+     * @throws IllegalArgumentException if the number of threads or the capacity is less than 1
+     */
+    ParallelMapperImpl(int threads, boolean daemon, int capacity, OverflowPolicy overflowPolicy) {
         if (threads < 1) {
             throw new IllegalArgumentException("The number of threads must be greater than 0.");
         }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity of the queue must be greater than 0.");
+        }
+        this.capacity = capacity;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
         tasks = new ArrayDeque<>();
         threadsList = new ArrayList<>();
         for (int i = 0; i < threads; ++i) {
+            final int worker = i;
             Thread thread = new Thread(() -> {
                 try {
                     while (!Thread.interrupted()) {
-                        getNextTask().run();
+                        Task task = getNextTask();
+                        ParallelMapperMetrics currentMetrics = metrics;
+                        if (currentMetrics == null) {
+                            task.run();
+                        } else {
+                            long start = System.nanoTime();
+                            task.run();
+                            currentMetrics.recordRun(worker, System.nanoTime() - start);
+                        }
                     }
                 } catch (InterruptedException ignored) {
                 }
             });
+            thread.setDaemon(daemon);
             threadsList.add(thread);
             thread.start();
         }
     }
 
-    private Runnable getNextTask() throws InterruptedException {
+    /**
+     * Returns {@code true} if the current thread is one of the threads of this mapper.
+     * Waiting for this mapper from such a thread may deadlock, so callers should compute inline instead.
+     */
+    boolean isWorkerThread() {
+        return threadsList.contains(Thread.currentThread());
+    }
+
+    /**
+     * Starts collecting scheduler metrics of this mapper. Until this method is called,
+     * no metrics are collected and the scheduler does no extra work.
+     *
+     * @return the metrics of this mapper
+     */
+    public synchronized ParallelMapperMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new ParallelMapperMetrics(threadsList.size(), () -> {
+                synchronized (tasks) {
+                    return tasks.size();
+                }
+            });
+        }
+        return metrics;
+    }
+
+    private Task getNextTask() throws InterruptedException {
         synchronized (tasks) {
             while (tasks.isEmpty()) {
+                if (closed) {
+                    // The interrupt from close() may have been swallowed by the last task
+                    throw new InterruptedException();
+                }
                 tasks.wait();
             }
 
-            return tasks.poll();
+            Task task = tasks.poll();
+            if (fill() || blocked > 0) {
+                tasks.notifyAll();
+            }
+            return task;
+        }
+    }
+
+    /**
+     * Moves elements of the calls in the backlog into the free space of the queue,
+     * taking one element of every call in turn. Must be called holding the lock on {@code tasks}.
+     *
+     * @return {@code true} if any task has been queued
+     */
+    private boolean fill() {
+        boolean queued = false;
+        while (tasks.size() < capacity && !backlog.isEmpty()) {
+            Job job = backlog.poll();
+            if (job.isDone()) {
+                continue;
+            }
+            tasks.add(job.nextTask());
+            queued = true;
+            if (job.hasNext()) {
+                backlog.add(job);
+            }
         }
+        return queued;
     }
 
     /**
@@ -57,54 +201,383 @@ public class ParallelMapperImpl implements ParallelMapper {
      * @param f    the function to be applied to the elements
      * @param args the list of arguments to which the function is to be applied
      * @return a list containing the results of applying the function to the elements of the input list
-     * @throws InterruptedException if the thread is interrupted while waiting for the tasks to be completed
+     * @throws InterruptedException       if the thread is interrupted while waiting for the tasks to be completed
+     * @throws RejectedExecutionException if the mapper is closed or, with {@link OverflowPolicy#REJECT},
+     *                                    the tasks do not fit into the queue
      */
     @Override
     public <T, R> List<R> map(Function<? super T, ? extends R> f, List<? extends T> args) throws InterruptedException {
-        List<R> result = new ArrayList<>(Collections.nCopies(args.size(), null));
-        var notCompletedTasks = new NotCompletedTasks(args.size());
-        for (int i = 0; i < args.size(); ++i) {
-            final int ind = i;
-            tasks.add(() -> {
-                var r = f.apply(args.get(ind));
-                synchronized (result) {
-                    result.set(ind, r);
-                }
-                notCompletedTasks.decrease();
-            });
+        final CompletableFuture<List<R>> future = mapAsync(f, args);
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Applies the specified function to the elements of the given list in parallel without waiting for the result.
+     * <p>
+     * The returned future completes once every element has been processed, or exceptionally as soon as
+     * any application of {@code f} throws. Cancelling the returned future, or completing it in any other way,
+     * cancels every element that has not been started yet.
+     * <p>
+     * With {@link OverflowPolicy#BLOCK} and {@link OverflowPolicy#CALLER_RUNS}, this method does not return
+     * while the elements do not fit into the queue; use {@link OverflowPolicy#QUEUE} to never wait.
+     *
+     * @param f    the function to be applied to the elements
+     * @param args the list of arguments to which the function is to be applied
+     * @return a future of the list containing the results of applying the function to the elements of the input list
+     */
+    public <T, R> CompletableFuture<List<R>> mapAsync(Function<? super T, ? extends R> f, List<? extends T> args) {
+        final ParallelMapperMetrics currentMetrics = metrics;
+        final long start = currentMetrics == null ? 0 : System.nanoTime();
+        final ListJob<T, R> job = new ListJob<>(f, args);
+        job.result.whenComplete((r, e) -> {
+            if (currentMetrics != null) {
+                currentMetrics.recordMap(System.nanoTime() - start);
+            }
+        });
+        submit(job);
+        return job.result;
+    }
+
+    /**
+     * Applies the specified function to the elements of the given list in parallel, with a time limit.
+     * <p>
+     * If the time limit expires, the returned future completes with a
+     * {@link java.util.concurrent.TimeoutException} and the elements that have not been started yet are cancelled.
+     *
+     * @param f       the function to be applied to the elements
+     * @param args    the list of arguments to which the function is to be applied
+     * @param timeout how long to wait before giving up, in units of {@code unit}
+     * @param unit    the unit of {@code timeout}
+     * @return a future of the list containing the results of applying the function to the elements of the input list
+     */
+    public <T, R> CompletableFuture<List<R>> mapAsync(Function<? super T, ? extends R> f, List<? extends T> args,
+                                                      long timeout, TimeUnit unit) {
+        return this.<T, R>mapAsync(f, args).orTimeout(timeout, unit);
+    }
+
+    /**
+     * Applies the specified function to the elements of the given list in parallel, providing a separate future
+     * for every element.
+     * <p>
+     * Futures complete in the order the elements are processed, so partial results may be consumed while
+     * the rest are still computing. Cancelling a future of an element that has not been started yet
+     * prevents it from being processed.
+     * <p>
+     * Unlike {@link #map} and {@link #mapAsync}, this method creates a future for every element at once.
+     *
+     * @param f    the function to be applied to the elements
+     * @param args the list of arguments to which the function is to be applied
+     * @return a list of futures of the results, in the order of the input list
+     */
+    public <T, R> List<CompletableFuture<R>> mapEach(Function<? super T, ? extends R> f, List<? extends T> args) {
+        final EachJob<T, R> job = new EachJob<>(f, args);
+        submit(job);
+        return job.elements;
+    }
+
+    /**
+     * Queues the elements of the call that fit into the queue, and deals with the rest
+     * according to the overflow policy.
+     */
+    private void submit(Job job) {
+        final ParallelMapperMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.recordSubmitted(job.size());
+        }
+        while (job.hasNext()) {
+            Task callerTask = null;
             synchronized (tasks) {
-                tasks.notify();
+                if (closed) {
+                    job.reject("The mapper is closed.");
+                    return;
+                }
+                if (job.isDone()) {
+                    return;
+                }
+                if (overflowPolicy == OverflowPolicy.QUEUE) {
+                    // Behind the calls already waiting, so that a long call does not hold the others back
+                    backlog.add(job);
+                    if (fill()) {
+                        tasks.notifyAll();
+                    }
+                    return;
+                }
+                boolean queued = false;
+                while (job.hasNext() && tasks.size() < capacity) {
+                    tasks.add(job.nextTask());
+                    queued = true;
+                }
+                if (queued) {
+                    tasks.notifyAll();
+                }
+                if (!job.hasNext()) {
+                    return;
+                }
+                switch (overflowPolicy) {
+                    case REJECT -> {
+                        job.reject("The task queue is full.");
+                        return;
+                    }
+                    case BLOCK -> {
+                        blocked++;
+                        try {
+                            tasks.wait();
+                        } catch (InterruptedException e) {
+                            job.cancel();
+                            Thread.currentThread().interrupt();
+                            return;
+                        } finally {
+                            blocked--;
+                        }
+                    }
+                    default -> callerTask = job.nextTask();
+                }
+            }
+            if (callerTask != null) {
+                callerTask.run();
             }
         }
-        notCompletedTasks.waits();
-        return result;
     }
 
     /**
-     * Interrupts all threads associated with this instance of {@code ParallelMapperImpl}.
+     * Shuts this mapper down: fails the tasks that have not been started yet, interrupts all threads
+     * associated with this instance of {@code ParallelMapperImpl}, waits for the tasks that are running
+     * to finish and the threads to terminate, and unregisters its metrics from JMX, if they were registered.
      */
     @Override
     public void close() {
+        final List<Task> discarded;
+        final List<Job> waiting;
+        synchronized (tasks) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            discarded = new ArrayList<>(tasks);
+            tasks.clear();
+            waiting = new ArrayList<>(backlog);
+            backlog.clear();
+            tasks.notifyAll();
+        }
+        discarded.forEach(task -> task.job().reject(task.index(), "The mapper is closed."));
+        waiting.forEach(job -> job.reject("The mapper is closed."));
         threadsList.forEach(Thread::interrupt);
+
+        boolean interrupted = false;
+        for (Thread thread : threadsList) {
+            while (thread != Thread.currentThread() && thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (metrics != null) {
+            metrics.unregister();
+        }
     }
 
-    private static class NotCompletedTasks {
-        private int number;
+    /**
+     * Element of a call; {@code enqueued} is the time it was queued, if metrics are collected.
+     */
+    private record Task(Job job, int index, long enqueued) {
+        private void run() {
+            job.run(index, enqueued);
+        }
+    }
+
+    /**
+     * A call being processed. Elements are handed out in order; the fields are guarded by {@code tasks}.
+     */
+    private abstract class Job {
+        private final int size;
+        private int next;
+
+        private Job(int size) {
+            this.size = size;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private boolean hasNext() {
+            return next < size;
+        }
 
-        private NotCompletedTasks(int number) {
-            this.number = number;
+        private Task nextTask() {
+            return new Task(this, next++, metrics == null ? 0 : System.nanoTime());
         }
 
-        private synchronized void decrease() {
-            if (--number == 0) {
-                notify();
+        private void run(int index, long enqueued) {
+            final ParallelMapperMetrics currentMetrics = metrics;
+            if (currentMetrics != null && enqueued != 0) {
+                currentMetrics.recordQueued(System.nanoTime() - enqueued);
             }
+            run(index);
         }
 
-        private synchronized void waits() throws InterruptedException {
-            while (number != 0) {
-                wait();
+        /**
+         * Fails the elements that have not been handed out yet.
+         */
+        private void reject(String reason) {
+            final RejectedExecutionException e = new RejectedExecutionException(reason);
+            while (next < size) {
+                reject(next++, e);
             }
         }
+
+        private void reject(int index, String reason) {
+            reject(index, new RejectedExecutionException(reason));
+        }
+
+        /**
+         * Cancels the elements that have not been handed out yet.
+         */
+        private void cancel() {
+            while (next < size) {
+                cancel(next++);
+            }
+        }
+
+        /**
+         * Processes the element, unless the call has already been completed.
+         */
+        abstract void run(int index);
+
+        abstract void reject(int index, RejectedExecutionException e);
+
+        abstract void cancel(int index);
+
+        /**
+         * Returns {@code true} if the elements not handed out yet need not be processed.
+         */
+        abstract boolean isDone();
+    }
+
+    /**
+     * Call of {@link #mapAsync}: results are collected into an array and completed by a single future.
+     */
+    private class ListJob<T, R> extends Job {
+        private final Function<? super T, ? extends R> f;
+        private final List<? extends T> args;
+        private final Object[] results;
+        private final AtomicInteger remaining;
+        private final CompletableFuture<List<R>> result = new CompletableFuture<>();
+
+        private ListJob(Function<? super T, ? extends R> f, List<? extends T> args) {
+            super(args.size());
+            this.f = f;
+            this.args = args instanceof RandomAccess ? args : new ArrayList<>(args);
+            results = new Object[args.size()];
+            remaining = new AtomicInteger(args.size());
+            if (args.isEmpty()) {
+                result.complete(new ArrayList<>());
+            }
+        }
+
+        @Override
+        void run(int index) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                results[index] = f.apply(args.get(index));
+            } catch (Throwable e) {
+                // Errors too, or the worker would die and the call would never complete
+                result.completeExceptionally(e);
+                return;
+            }
+            if (remaining.decrementAndGet() == 0) {
+                @SuppressWarnings("unchecked")
+                final List<R> values = new ArrayList<>((List<R>) Arrays.asList(results));
+                result.complete(values);
+            }
+        }
+
+        @Override
+        void reject(int index, RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+
+        @Override
+        void cancel(int index) {
+            result.cancel(false);
+        }
+
+        @Override
+        boolean isDone() {
+            return result.isDone();
+        }
+    }
+
+    /**
+     * Call of {@link #mapEach}: every element has its own future.
+     */
+    private class EachJob<T, R> extends Job {
+        private final Function<? super T, ? extends R> f;
+        private final List<? extends T> args;
+        private final List<CompletableFuture<R>> elements;
+
+        private EachJob(Function<? super T, ? extends R> f, List<? extends T> args) {
+            super(args.size());
+            this.f = f;
+            this.args = args instanceof RandomAccess ? args : new ArrayList<>(args);
+            elements = new ArrayList<>(args.size());
+            for (int i = 0; i < args.size(); ++i) {
+                elements.add(new CompletableFuture<>());
+            }
+        }
+
+        @Override
+        void run(int index) {
+            final CompletableFuture<R> element = elements.get(index);
+            if (element.isDone()) {
+                return;
+            }
+            try {
+                element.complete(f.apply(args.get(index)));
+            } catch (Throwable e) {
+                // Errors too, or the worker would die and the element would never complete
+                element.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        void reject(int index, RejectedExecutionException e) {
+            elements.get(index).completeExceptionally(e);
+        }
+
+        @Override
+        void cancel(int index) {
+            elements.get(index).cancel(false);
+        }
+
+        @Override
+        boolean isDone() {
+            return false;
+        }
     }
 }
@@ -0,0 +1,217 @@
+package info.kgeorgiy.ja.pleshanov.concurrent;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Scheduler metrics of a {@link ParallelMapperImpl}, enabled by {@link ParallelMapperImpl#enableMetrics()}.
+ * <p>
+ * Latencies of {@code map} calls are kept in a histogram with power-of-two buckets,
+ * so percentiles are accurate up to a factor of two.
+ *
+ * @author Pleshanov Pavel
+ */
+public class ParallelMapperMetrics implements ParallelMapperMetricsMXBean {
+    private static final int BUCKETS = Long.SIZE + 1;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final long start = System.nanoTime();
+    private final IntSupplier queueLength;
+    private final LongAdder submittedTasks = new LongAdder();
+    private final LongAdder completedTasks = new LongAdder();
+    private final LongAdder queuedNanos = new LongAdder();
+    private final LongAdder runningNanos = new LongAdder();
+    private final AtomicLongArray workerBusyNanos;
+    private final AtomicLongArray mapLatencies = new AtomicLongArray(BUCKETS);
+    private ObjectName objectName;
+
+    ParallelMapperMetrics(int threads, IntSupplier queueLength) {
+        this.queueLength = queueLength;
+        this.workerBusyNanos = new AtomicLongArray(threads);
+    }
+
+    void recordSubmitted(int tasks) {
+        submittedTasks.add(tasks);
+    }
+
+    void recordQueued(long nanos) {
+        queuedNanos.add(nanos);
+    }
+
+    void recordRun(int worker, long nanos) {
+        completedTasks.increment();
+        runningNanos.add(nanos);
+        workerBusyNanos.addAndGet(worker, nanos);
+    }
+
+    void recordMap(long nanos) {
+        mapLatencies.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+    }
+
+    /**
+     * Returns a consistent-enough copy of the current values of all metrics.
+     * Differences between two snapshots give the rates over the interval between them.
+     *
+     * @return the snapshot of the metrics
+     */
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        double[] busyRatios = new double[workerBusyNanos.length()];
+        for (int i = 0; i < busyRatios.length; ++i) {
+            busyRatios[i] = (double) workerBusyNanos.get(i) / Math.max(1, now - start);
+        }
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            histogram[i] = mapLatencies.get(i);
+        }
+        return new Snapshot(now - start, queueLength.getAsInt(), submittedTasks.sum(), completedTasks.sum(),
+                queuedNanos.sum(), runningNanos.sum(), busyRatios, histogram);
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server under
+     * {@code info.kgeorgiy.ja.pleshanov.concurrent:type=ParallelMapper,name=<name>}.
+     * They are unregistered when the mapper is closed.
+     *
+     * @param name the name distinguishing this mapper from the others
+     * @throws JMException if the name is invalid or already registered
+     */
+    public synchronized void register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("info.kgeorgiy.ja.pleshanov.concurrent:type=ParallelMapper,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                System.err.println("Error occurred while unregistering metrics: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public int getQueueLength() {
+        return queueLength.getAsInt();
+    }
+
+    @Override
+    public long getSubmittedTasks() {
+        return submittedTasks.sum();
+    }
+
+    @Override
+    public long getCompletedTasks() {
+        return completedTasks.sum();
+    }
+
+    @Override
+    public double getTasksPerSecond() {
+        return snapshot().tasksPerSecond();
+    }
+
+    @Override
+    public double getAverageQueuedMillis() {
+        return snapshot().averageQueuedNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getAverageRunningMillis() {
+        return snapshot().averageRunningNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double[] getWorkerBusyRatios() {
+        return snapshot().workerBusyRatios();
+    }
+
+    @Override
+    public long getMapCalls() {
+        return snapshot().mapCalls();
+    }
+
+    @Override
+    public double getMapLatencyP50Millis() {
+        return snapshot().mapLatencyPercentileNanos(0.5) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMapLatencyP99Millis() {
+        return snapshot().mapLatencyPercentileNanos(0.99) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Values of the metrics at some moment.
+     *
+     * @param uptimeNanos         the time since the metrics were enabled
+     * @param queueLength         the number of tasks waiting in the queue
+     * @param submittedTasks      the number of submitted tasks
+     * @param completedTasks      the number of completed tasks
+     * @param queuedNanos         the total time completed tasks spent in the queue
+     * @param runningNanos        the total time completed tasks spent running
+     * @param workerBusyRatios    the fraction of the uptime every worker spent running tasks
+     * @param mapLatencyHistogram the number of {@code map} calls whose latency in nanoseconds
+     *                            has {@code i} significant bits, for every {@code i}
+     */
+    public record Snapshot(long uptimeNanos, int queueLength, long submittedTasks, long completedTasks,
+                           long queuedNanos, long runningNanos, double[] workerBusyRatios,
+                           long[] mapLatencyHistogram) {
+        /**
+         * @return the average number of tasks completed per second
+         */
+        public double tasksPerSecond() {
+            return completedTasks * 1e9 / Math.max(1, uptimeNanos);
+        }
+
+        /**
+         * @return the average time a task spent in the queue, in nanoseconds
+         */
+        public double averageQueuedNanos() {
+            return (double) queuedNanos / Math.max(1, completedTasks);
+        }
+
+        /**
+         * @return the average time a task spent running, in nanoseconds
+         */
+        public double averageRunningNanos() {
+            return (double) runningNanos / Math.max(1, completedTasks);
+        }
+
+        /**
+         * @return the number of completed {@code map} calls
+         */
+        public long mapCalls() {
+            long calls = 0;
+            for (long count : mapLatencyHistogram) {
+                calls += count;
+            }
+            return calls;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of {@code map} call latency.
+         *
+         * @param percentile the percentile, between {@code 0} and {@code 1}
+         * @return the upper bound of the latency, in nanoseconds, or {@code 0} if there were no calls
+         */
+        public long mapLatencyPercentileNanos(double percentile) {
+            long rank = (long) Math.ceil(percentile * mapCalls());
+            long seen = 0;
+            for (int i = 0; i < mapLatencyHistogram.length; ++i) {
+                seen += mapLatencyHistogram[i];
+                if (seen >= rank && seen > 0) {
+                    return i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+    }
+}
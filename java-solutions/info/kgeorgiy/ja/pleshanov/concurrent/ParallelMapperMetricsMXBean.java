@@ -0,0 +1,58 @@
+package info.kgeorgiy.ja.pleshanov.concurrent;
+
+/**
+ * JMX view of the {@link ParallelMapperMetrics} of a {@link ParallelMapperImpl}.
+ *
+ * @author Pleshanov Pavel
+ */
+public interface ParallelMapperMetricsMXBean {
+    /**
+     * @return the number of tasks waiting in the queue
+     */
+    int getQueueLength();
+
+    /**
+     * @return the number of tasks submitted since the metrics were enabled
+     */
+    long getSubmittedTasks();
+
+    /**
+     * @return the number of tasks completed since the metrics were enabled
+     */
+    long getCompletedTasks();
+
+    /**
+     * @return the average number of tasks completed per second since the metrics were enabled
+     */
+    double getTasksPerSecond();
+
+    /**
+     * @return the average time a task spends in the queue, in milliseconds
+     */
+    double getAverageQueuedMillis();
+
+    /**
+     * @return the average time a task spends running, in milliseconds
+     */
+    double getAverageRunningMillis();
+
+    /**
+     * @return the fraction of time every worker spent running tasks since the metrics were enabled
+     */
+    double[] getWorkerBusyRatios();
+
+    /**
+     * @return the number of completed {@code map} calls
+     */
+    long getMapCalls();
+
+    /**
+     * @return the median {@code map} call latency, in milliseconds
+     */
+    double getMapLatencyP50Millis();
+
+    /**
+     * @return the 99th percentile of {@code map} call latency, in milliseconds
+     */
+    double getMapLatencyP99Millis();
+}
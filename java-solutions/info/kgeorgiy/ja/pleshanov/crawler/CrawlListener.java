@@ -0,0 +1,32 @@
+package info.kgeorgiy.ja.pleshanov.crawler;
+
+import info.kgeorgiy.java.advanced.crawler.Document;
+
+import java.io.IOException;
+
+/**
+ * Receives the pages of a {@link WebCrawler#crawl crawl} as they are downloaded.
+ * <p>
+ * The methods are called concurrently from the downloader threads, and the crawl waits for them,
+ * so a slow listener slows the crawl down instead of letting results pile up.
+ * If a method throws an unchecked exception, the crawl stops and its future completes with that exception.
+ *
+ * @author Pleshanov Pavel
+ */
+public interface CrawlListener {
+    /**
+     * Called when a page has been downloaded.
+     *
+     * @param url      the URL of the page
+     * @param document the downloaded page
+     */
+    void downloaded(String url, Document document);
+
+    /**
+     * Called when a page could not be downloaded.
+     *
+     * @param url   the URL of the page
+     * @param error the cause of the failure
+     */
+    void failed(String url, IOException error);
+}
@@ -0,0 +1,269 @@
+package info.kgeorgiy.ja.pleshanov.crawler;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Set of visited URLs with the largest depth each of them was reached with and an optional attachment.
+ * <p>
+ * URLs are not stored: every URL is represented by a single {@code long} in an open-addressing table,
+ * its fingerprint in the high bits and its depth in the low bits, which takes about 24 bytes per URL
+ * with the attachment reference instead of more than a hundred for the URL string and a hash map node.
+ * The attachments themselves are not counted, so callers should keep them small and replace
+ * them once they are no longer needed.
+ * Two URLs with the same fingerprint are taken for one; for a million URLs and depths below {@code 1000}
+ * the chance of that is about {@code 3e-5}.
+ * <p>
+ * The table is split into segments. Lookups and depth updates are lock-free; insertions
+ * and attachments take the lock of their segment, which also resizes it. A resize marks the slots
+ * of the old table as moved before the new table is published, so lookups that miss or meet
+ * a moved slot are repeated under the lock, after the resize.
+ *
+ * @param <V> the type of attachments
+ * @author Pleshanov Pavel
+ */
+class VisitedTable<V> {
+    private static final int SEGMENTS_SHIFT = 6;
+    private static final int INITIAL_CAPACITY = 16;
+    /** Entry of a slot copied to a larger table. */
+    private static final long MOVED = -1;
+
+    private final Segment<V>[] segments;
+    private final int depthBits;
+    private final long depthMask;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param maxDepth the maximum depth of visited URLs
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    VisitedTable(final int maxDepth) {
+        // One more than needed, so that no entry has all bits set, as MOVED does.
+        depthBits = Integer.SIZE - Integer.numberOfLeadingZeros(maxDepth + 1);
+        depthMask = (1L << depthBits) - 1;
+        segments = new Segment[1 << SEGMENTS_SHIFT];
+        for (int i = 0; i < segments.length; ++i) {
+            segments[i] = new Segment<>(depthBits);
+        }
+    }
+
+    /**
+     * Raises the depth of the URL to the given one, adding the URL if it is new.
+     *
+     * @param url   the URL
+     * @param depth the positive depth the URL has been reached with
+     * @return {@code 0} if the URL is new, or its depth before the call otherwise;
+     * the depth has been raised if the result is less than {@code depth}
+     */
+    int visit(final String url, final int depth) {
+        final long fingerprint = fingerprint(url);
+        final Segment<V> segment = segment(fingerprint);
+        while (true) {
+            final Table<V> table = segment.table;
+            final int slot = table.find(fingerprint);
+            if (slot < 0) {
+                if (segment.insert(fingerprint, fingerprint << depthBits | depth)) {
+                    return 0;
+                }
+                continue;
+            }
+            long entry = table.entries.get(slot);
+            while (entry != MOVED && (entry & depthMask) < depth) {
+                if (table.entries.compareAndSet(slot, entry, entry & ~depthMask | depth)) {
+                    return (int) (entry & depthMask);
+                }
+                entry = table.entries.get(slot);
+            }
+            if (entry != MOVED) {
+                return (int) (entry & depthMask);
+            }
+            segment.awaitResize();
+        }
+    }
+
+    /**
+     * Returns the depth of the URL, or {@code 0} if it has not been visited.
+     */
+    int depth(final String url) {
+        final long fingerprint = fingerprint(url);
+        final Segment<V> segment = segment(fingerprint);
+        final Table<V> table = segment.table;
+        final int slot = table.find(fingerprint);
+        final long entry = slot < 0 ? MOVED : table.entries.get(slot);
+        if (entry != MOVED) {
+            return (int) (entry & depthMask);
+        }
+        synchronized (segment) {
+            final int current = segment.table.find(fingerprint);
+            return current < 0 ? 0 : (int) (segment.table.entries.get(current) & depthMask);
+        }
+    }
+
+    /**
+     * Returns the attachment of the URL, or {@code null} if there is none.
+     */
+    V attachment(final String url) {
+        final long fingerprint = fingerprint(url);
+        final Segment<V> segment = segment(fingerprint);
+        final Table<V> table = segment.table;
+        final int slot = table.find(fingerprint);
+        if (slot >= 0) {
+            final V attachment = table.attachments.get(slot);
+            // Attachments are copied with their entries, so if the slot has not been moved, the attachment was current.
+            if (table.entries.get(slot) != MOVED) {
+                return attachment;
+            }
+        }
+        synchronized (segment) {
+            final int current = segment.table.find(fingerprint);
+            return current < 0 ? null : segment.table.attachments.get(current);
+        }
+    }
+
+    /**
+     * Attaches the value to a visited URL.
+     */
+    void attach(final String url, final V value) {
+        final long fingerprint = fingerprint(url);
+        final Segment<V> segment = segment(fingerprint);
+        synchronized (segment) {
+            final int slot = segment.table.find(fingerprint);
+            if (slot >= 0) {
+                segment.table.attachments.set(slot, value);
+            }
+        }
+    }
+
+    /**
+     * Replaces the attachment of a visited URL if it is the expected one, compared by identity.
+     *
+     * @return {@code true} if the attachment has been replaced
+     */
+    boolean replace(final String url, final V expected, final V value) {
+        final long fingerprint = fingerprint(url);
+        final Segment<V> segment = segment(fingerprint);
+        synchronized (segment) {
+            final int slot = segment.table.find(fingerprint);
+            if (slot >= 0 && segment.table.attachments.get(slot) == expected) {
+                segment.table.attachments.set(slot, value);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private Segment<V> segment(final long fingerprint) {
+        return segments[(int) (fingerprint >>> (Long.SIZE - depthBits - SEGMENTS_SHIFT))];
+    }
+
+    /**
+     * FNV-1a hash of the URL chars with the SplitMix64 finalizer, cut to fit beside the depth;
+     * never {@code 0}, so that no entry is {@code 0}, as empty slots are.
+     */
+    private long fingerprint(final String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); ++i) {
+            hash = (hash ^ url.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        hash ^= hash >>> 31;
+        hash >>>= depthBits;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static class Segment<V> {
+        private volatile Table<V> table;
+        private int size;
+
+        private Segment(final int depthBits) {
+            table = new Table<>(INITIAL_CAPACITY, depthBits);
+        }
+
+        /**
+         * Waits for a resize of this segment to finish.
+         */
+        private synchronized void awaitResize() {
+        }
+
+        /**
+         * Adds the entry of an absent fingerprint; returns {@code false} if it has been added concurrently.
+         */
+        private synchronized boolean insert(final long fingerprint, final long entry) {
+            if (table.find(fingerprint) >= 0) {
+                return false;
+            }
+            if (4 * (size + 1) > 3 * table.capacity()) {
+                table = table.resize();
+            }
+            table.put(entry, null);
+            ++size;
+            return true;
+        }
+    }
+
+    /**
+     * Linear probing table of entries and their attachments.
+     */
+    private static class Table<V> {
+        private final AtomicLongArray entries;
+        private final AtomicReferenceArray<V> attachments;
+        private final int mask;
+        private final int depthBits;
+
+        private Table(final int capacity, final int depthBits) {
+            entries = new AtomicLongArray(capacity);
+            attachments = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+            this.depthBits = depthBits;
+        }
+
+        private int capacity() {
+            return mask + 1;
+        }
+
+        private int home(final long fingerprint) {
+            return (int) fingerprint & mask;
+        }
+
+        /**
+         * Returns the slot of the fingerprint, or {@code -1} if it is absent.
+         * The slot may have been moved since, which the caller checks when reading the entry.
+         */
+        private int find(final long fingerprint) {
+            for (int slot = home(fingerprint); ; slot = (slot + 1) & mask) {
+                final long entry = entries.get(slot);
+                if (entry == 0) {
+                    return -1;
+                }
+                if (entry >>> depthBits == fingerprint) {
+                    return slot;
+                }
+            }
+        }
+
+        private void put(final long entry, final V attachment) {
+            int slot = home(entry >>> depthBits);
+            while (entries.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            attachments.set(slot, attachment);
+            entries.set(slot, entry);
+        }
+
+        /**
+         * Copies the slots into a table twice as large, marking them as moved so that
+         * concurrent depth updates retry on the new table.
+         */
+        private Table<V> resize() {
+            final Table<V> resized = new Table<>(2 * capacity(), depthBits);
+            for (int slot = 0; slot < capacity(); ++slot) {
+                if (entries.get(slot) != 0) {
+                    resized.put(entries.getAndSet(slot, MOVED), attachments.get(slot));
+                }
+            }
+            return resized;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package info.kgeorgiy.ja.pleshanov.crawler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Stress test of the lock-free reads of {@link VisitedTable} racing with resizes; run as a main, not a unit test.
+ * <p>
+ * Every round fills a table with {@code present} URLs of known depths and attachments. Then one thread inserts
+ * {@code added} new URLs, resizing every segment many times, while {@code readers} threads keep reading
+ * the present URLs with {@link VisitedTable#depth}, {@link VisitedTable#attachment} and a {@link VisitedTable#visit}
+ * that must not raise them. Every read that returns something else is counted as wrong.
+ * The first round is a warmup and is not reported.
+ * <p>
+ * Usage: {@code VisitedTableStressTest present added readers [rounds]}.
+ * Exits with status {@code 1} if any read has been wrong.
+ *
+ * @author Pleshanov Pavel
+ */
+public class VisitedTableStressTest {
+    private static final int MAX_DEPTH = 10;
+
+    private final int present;
+    private final int added;
+    private final int readers;
+
+    private VisitedTableStressTest(final int present, final int added, final int readers) {
+        this.present = present;
+        this.added = added;
+        this.readers = readers;
+    }
+
+    public static void main(final String[] args) {
+        if (args == null || args.length < 3) {
+            System.err.println("Usage: VisitedTableStressTest present added readers [rounds]");
+            return;
+        }
+        try {
+            final VisitedTableStressTest test = new VisitedTableStressTest(Integer.parseInt(args[0]),
+                    Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            final int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+            test.run();
+            long wrong = 0;
+            for (int round = 1; round <= rounds; ++round) {
+                final long[] result = test.run();
+                System.out.printf("round %d: %d reads, %d wrong%n", round, result[0], result[1]);
+                wrong += result[1];
+            }
+            if (wrong > 0) {
+                System.exit(1);
+            }
+        } catch (final IllegalArgumentException e) {
+            System.err.println("Wrong arguments: " + e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a round and returns the number of reads and the number of wrong ones.
+     */
+    private long[] run() throws InterruptedException {
+        final VisitedTable<String> table = new VisitedTable<>(MAX_DEPTH);
+        for (int i = 0; i < present; ++i) {
+            table.visit(presentUrl(i), depth(i));
+            table.attach(presentUrl(i), attachment(i));
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong wrong = new AtomicLong();
+        final Thread writer = new Thread(() -> {
+            for (int i = 0; i < added; ++i) {
+                table.visit("http://added/" + i, 1);
+            }
+            done.set(true);
+        });
+        final Thread[] threads = new Thread[readers];
+        for (int k = 0; k < readers; ++k) {
+            final int first = k * present / readers;
+            threads[k] = new Thread(() -> {
+                long count = 0;
+                long errors = 0;
+                for (int i = first; !done.get(); i = (i + 1) % present) {
+                    final String url = presentUrl(i);
+                    errors += table.depth(url) != depth(i) ? 1 : 0;
+                    errors += attachment(i).equals(table.attachment(url)) ? 0 : 1;
+                    errors += table.visit(url, 1) != depth(i) ? 1 : 0;
+                    count += 3;
+                }
+                reads.addAndGet(count);
+                wrong.addAndGet(errors);
+            });
+            threads[k].start();
+        }
+        writer.start();
+        writer.join();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return new long[]{reads.get(), wrong.get()};
+    }
+
+    private static String presentUrl(final int i) {
+        return "http://present/" + i;
+    }
+
+    private static int depth(final int i) {
+        return 1 + i % (MAX_DEPTH - 1);
+    }
+
+    private static String attachment(final int i) {
+        return "links of " + i;
+    }
+}
@@ -4,11 +4,22 @@ import info.kgeorgiy.java.advanced.crawler.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.io.IOException;
 import java.net.MalformedURLException;
 
 /**
  * WebCrawler class.
+ * <p>
+ * Crawls without waiting for a whole layer of pages to be downloaded: every page is scheduled as soon
+ * as its link is extracted. Downloads wait in lock-free per-host queues, at most {@code perHost} of them
+ * running for every host, and then in a global queue, at most the number of downloaders running at once.
+ * Both queues prefer pages closer to the starting URL.
+ * <p>
+ * Downloads run on a fixed pool of platform threads or, for a crawler created by {@link #withVirtualThreads},
+ * every download runs on its own virtual thread. Links are always extracted on a fixed pool of platform threads.
  *
  * @author Pleshanov Pavel
  */
@@ -17,9 +28,16 @@ public class WebCrawler implements Crawler {
     private final ExecutorService downloaders;
     private final ExecutorService extractors;
     private final int perHost;
-    private final Map<String, HostDownloader> hostMapper;
+    private final Map<String, Admission> hostMapper;
+    private final Admission admission;
+    private final AtomicLong sequence = new AtomicLong();
+    /** Crawls not completed yet, failed by {@link #close}. */
+    private final Set<Crawl> crawls = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
 
     private static final int DEFAULT_VALUE = 1;
+    /** Attachment of a page whose links have not been kept, compared by identity. */
+    private static final List<String> NOT_KEPT = Collections.unmodifiableList(new ArrayList<>());
 
     /**
      * Constructor of WebCrawler class.
@@ -28,13 +46,48 @@ public class WebCrawler implements Crawler {
      * @param downloaders the number of downloaders to use
      * @param extractors  the number of extractors to use
      * @param perHost     the maximum number of downloads per host
+     * @throws IllegalArgumentException if {@code downloaders}, {@code extractors} or {@code perHost} is not positive
      */
     public WebCrawler(Downloader downloader, int downloaders, int extractors, int perHost) {
+        this(downloader, Executors.newFixedThreadPool(checkPositive(downloaders, "number of downloaders")),
+                downloaders, extractors, perHost);
+    }
+
+    private WebCrawler(Downloader downloader, ExecutorService downloaders, int maxDownloads,
+                       int extractors, int perHost) {
+        checkPositive(extractors, "number of extractors");
+        checkPositive(perHost, "maximum number of downloads per host");
         this.downloader = downloader;
-        this.downloaders = Executors.newFixedThreadPool(downloaders);
+        this.downloaders = downloaders;
         this.extractors = Executors.newFixedThreadPool(extractors);
         this.perHost = perHost;
         this.hostMapper = new ConcurrentHashMap<>();
+        this.admission = new Admission(maxDownloads, task -> {
+            try {
+                downloaders.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.crawl().reject(e);
+                return false;
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Creates a crawler running every download on its own virtual thread, so the number of downloads
+     * waiting for I/O at once is limited only by {@code maxDownloads} and {@code perHost}.
+     * On runtimes without virtual threads, downloads run on a cached pool of platform threads.
+     *
+     * @param downloader   the Downloader to use for downloading web pages
+     * @param maxDownloads the maximum number of downloads at once
+     * @param extractors   the number of extractors to use
+     * @param perHost      the maximum number of downloads per host
+     * @return the crawler
+     * @throws IllegalArgumentException if {@code maxDownloads}, {@code extractors} or {@code perHost} is not positive
+     */
+    public static WebCrawler withVirtualThreads(Downloader downloader, int maxDownloads, int extractors, int perHost) {
+        checkPositive(maxDownloads, "maximum number of downloads");
+        return new WebCrawler(downloader, newVirtualThreadPerTaskExecutor(), maxDownloads, extractors, perHost);
     }
 
     public static void main(String[] args) {
@@ -60,43 +113,119 @@ public class WebCrawler implements Crawler {
 
     /**
      * Downloads web pages starting from the given URL up to the given depth using multiple threads.
+     * <p>
+     * Pages are downloaded as soon as they are discovered, without waiting for the rest of their layer,
+     * shallower pages first. A page first reached by a longer path is expanded again if a shorter path
+     * to it is found later, so the result is the same as for a breadth-first crawl.
      *
      * @param url   the starting URL to download pages from
      * @param depth the maximum depth of links to follow from the starting URL
      * @return a Result object containing a list of downloaded page URLs and any errors encountered during the process
+     * @throws RejectedExecutionException if the crawler is closed before the crawl is over
      */
     @Override
     public Result download(String url, int depth) {
-        final ConcurrentLinkedQueue<String> linksPool = new ConcurrentLinkedQueue<>();
-        final Set<String> extractedPages = ConcurrentHashMap.newKeySet();
-        final Set<String> res = ConcurrentHashMap.newKeySet();
+        final Queue<String> res = new ConcurrentLinkedQueue<>();
         final ConcurrentMap<String, IOException> errors = new ConcurrentHashMap<>();
+        final CompletableFuture<Void> crawl = crawl(url, depth, new CrawlListener() {
+            @Override
+            public void downloaded(String url, Document document) {
+                res.add(url);
+            }
 
-        linksPool.add(url);
-
-        for (int i = depth; i > 0; --i) {
-            int currDepth = i;
-            Phaser phaser = new Phaser(1);
-            // :NOTE: изначальный url попадает сюда depth раз, хотя мы уже на 2 итерации знаем все про него (fixed)
-            var linksPoolList = List.copyOf(linksPool);
-            linksPool.clear();
-            linksPoolList.stream()
-                    .filter(extractedPages::add)
-                    .forEach(link -> pageDownload(link, currDepth, phaser, errors, res, linksPool));
-            phaser.arriveAndAwaitAdvance();
+            @Override
+            public void failed(String url, IOException error) {
+                errors.put(url, error);
+            }
+        });
+        try {
+            crawl.get();
+        } catch (InterruptedException e) {
+            crawl.cancel(false);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
         }
+        return new Result(List.copyOf(res), Map.copyOf(errors));
+    }
 
-        return new Result(List.copyOf(res), errors);
+    /**
+     * Crawls web pages starting from the given URL up to the given depth, reporting every page
+     * to the listener as soon as it is downloaded.
+     *
+     * @param url      the starting URL to download pages from
+     * @param depth    the maximum depth of links to follow from the starting URL
+     * @param listener the listener to report downloaded pages and errors to
+     * @return the future completed when the crawl is over; cancelling it stops the crawl
+     * @see #crawl(String, int, CrawlListener, int, long, TimeUnit)
+     */
+    public CompletableFuture<Void> crawl(String url, int depth, CrawlListener listener) {
+        return crawl(url, depth, listener, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Crawls web pages starting from the given URL up to the given depth, reporting every page
+     * to the listener as soon as it is downloaded, until the crawl is over or a budget is exhausted.
+     * <p>
+     * Once the returned future is completed, by the end of the crawl, by cancellation or by the time budget,
+     * no more downloads are started and no more pages are reported, except possibly those already being
+     * downloaded.
+     * <p>
+     * Documents are not kept after their links are extracted. For every discovered page the crawl keeps
+     * a fingerprint of its URL and, only while a shorter path to the page may still be found, its links,
+     * so that the page can be expanded again without being downloaded twice. Links of the pages at the
+     * last level are not kept: such a page reached again by a shorter path is downloaded again, but not
+     * reported twice and not counted in {@code maxPages}.
+     *
+     * @param url      the starting URL to download pages from
+     * @param depth    the maximum depth of links to follow from the starting URL
+     * @param listener the listener to report downloaded pages and errors to
+     * @param maxPages the maximum number of pages to download
+     * @param timeout  the time after which the crawl stops, or {@code 0} for no limit
+     * @param unit     the unit of {@code timeout}
+     * @return the future completed normally when the crawl is over or the time budget is exhausted,
+     * or exceptionally if the listener has thrown an exception or the crawler has been closed;
+     * cancelling it stops the crawl
+     */
+    public CompletableFuture<Void> crawl(String url, int depth, CrawlListener listener,
+                                         int maxPages, long timeout, TimeUnit unit) {
+        final Crawl crawl = new Crawl(Math.max(depth, 1), listener, maxPages);
+        crawls.add(crawl);
+        crawl.completion.whenComplete((result, e) -> crawls.remove(crawl));
+        if (closed) {
+            // Slots of the downloads discarded by close() are never released, so nothing would be admitted
+            crawl.completion.completeExceptionally(new RejectedExecutionException("The crawler is closed."));
+            return crawl.completion;
+        }
+        if (timeout > 0) {
+            crawl.completion.completeOnTimeout(null, timeout, unit);
+        }
+        if (depth > 0) {
+            crawl.visit(url, depth);
+        }
+        crawl.arrive();
+        return crawl.completion;
     }
 
     /**
      * Shuts down the executor services used for downloading and extracting web pages.
+     * Crawls that are not over yet complete exceptionally with a {@link RejectedExecutionException}.
      */
     @Override
     public void close() {
         // :NOTE: этого недостаточно (fixed)
+        closed = true;
         shutdownAndAwaitTermination(downloaders);
         shutdownAndAwaitTermination(extractors);
+        // Pages still waiting for admission will never be downloaded
+        final RejectedExecutionException closed = new RejectedExecutionException("The crawler is closed.");
+        crawls.forEach(crawl -> crawl.completion.completeExceptionally(closed));
     }
 
     void shutdownAndAwaitTermination(ExecutorService pool) {
@@ -113,73 +242,272 @@ public class WebCrawler implements Crawler {
         }
     }
 
+    private static int checkPositive(int value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("The " + name + " must be greater than 0.");
+        }
+        return value;
+    }
+
     private static int getValue(String[] args, int index) {
         return (index < args.length) ? Integer.parseInt(args[index]) : DEFAULT_VALUE;
     }
 
+    /**
+     * Returns {@code Executors.newVirtualThreadPerTaskExecutor()} if the runtime has it, or a cached pool.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
 
-    private class HostDownloader {
-        private final Queue<Runnable> pagesPool = new ArrayDeque<>();
-        private int number;
 
-        public synchronized void addPage(Runnable task) {
-            if (number >= perHost) {
-                pagesPool.add(task);
-            } else {
-                ++number;
-                downloaders.submit(task);
-            }
+    /**
+     * Page download ordered by the depth left after the page, higher first, then by sequence number.
+     */
+    private record PageTask(Crawl crawl, int depth, long sequence, Runnable action)
+            implements Runnable, Comparable<PageTask> {
+        @Override
+        public void run() {
+            action.run();
         }
 
-        private synchronized void runTasks() {
-            try {
-                downloaders.submit(pagesPool.remove());
-            } catch (NoSuchElementException ignored) {
-                --number;
+        @Override
+        public int compareTo(PageTask other) {
+            final int byDepth = Integer.compare(other.depth, depth);
+            return byDepth != 0 ? byDepth : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Lock-free admission of downloads: at most {@code limit} of them are passed on at once,
+     * from a host to the global admission, or from the global admission to the downloaders.
+     * <p>
+     * A page passed on gets a new sequence number, so the next page of a busy host waits
+     * behind the pages of other hosts with the same depth instead of taking the slot of the finished one.
+     * A page the next stage refuses releases its slot at once.
+     */
+    private class Admission {
+        private final NavigableSet<PageTask> pagesPool = new ConcurrentSkipListSet<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final int limit;
+        private final Predicate<PageTask> next;
+
+        private Admission(int limit, Predicate<PageTask> next) {
+            this.limit = limit;
+            this.next = next;
+        }
+
+        public boolean addPage(PageTask task) {
+            pagesPool.add(task);
+            runTasks();
+            return true;
+        }
+
+        /**
+         * Releases the slot of a finished download and admits the next page, if any.
+         */
+        private void release() {
+            running.decrementAndGet();
+            runTasks();
+        }
+
+        /**
+         * Admits pages while there are free slots. A page added by a thread that saw no free slot
+         * is admitted by the thread releasing a slot, which checks the queue afterwards.
+         */
+        private void runTasks() {
+            while (!pagesPool.isEmpty()) {
+                final int number = running.get();
+                if (number >= limit) {
+                    return;
+                }
+                if (!running.compareAndSet(number, number + 1)) {
+                    continue;
+                }
+                final PageTask task = pagesPool.pollFirst();
+                if (task == null || !next.test(
+                        new PageTask(task.crawl(), task.depth(), sequence.getAndIncrement(), task.action()))) {
+                    running.decrementAndGet();
+                }
             }
         }
     }
 
-    private void pageDownload(String link, int depth, Phaser phaser,
-                              ConcurrentMap<String, IOException> errors, Set<String> res,
-                              ConcurrentLinkedQueue<String> linksPool) {
-        String host;
-        try {
-            host = URLUtils.getHost(link);
-        } catch (MalformedURLException e) {
-            errors.put(link, e);
-            return;
+    /**
+     * State of a single {@link #crawl} call.
+     */
+    private class Crawl {
+        /**
+         * The largest depth left after every discovered page and what is kept of its links: {@code null}
+         * while a task of the page is working on them, the links if the page may still be reached with a larger
+         * depth left, and {@link #NOT_KEPT} otherwise. A task that replaces the attachment with {@code null}
+         * takes over the page, and gives it up by attaching its links again.
+         */
+        private final VisitedTable<List<String>> visited;
+        private final int maxDepth;
+        private final CrawlListener listener;
+        private final int maxPages;
+        private final AtomicInteger pages = new AtomicInteger();
+        /** Downloads and extractions not finished yet, and one more until the starting URL is visited. */
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        private Crawl(int depth, CrawlListener listener, int maxPages) {
+            visited = new VisitedTable<>(depth);
+            this.maxDepth = depth;
+            this.listener = listener;
+            this.maxPages = maxPages;
+        }
+
+        /**
+         * Downloads the page if it is new, or extracts its links again if it has been reached
+         * with a larger depth left than before.
+         */
+        private void visit(String link, int depth) {
+            if (completion.isDone()) {
+                return;
+            }
+            // :NOTE: изначальный url попадает сюда depth раз, хотя мы уже на 2 итерации знаем все про него (fixed)
+            final int known = visited.visit(link, depth);
+            if (known == 0) {
+                if (pages.incrementAndGet() <= maxPages) {
+                    pageDownload(link, depth, true);
+                }
+            } else if (known < depth) {
+                // Without an attachment, the task working on the page reads the new depth before giving it up.
+                final List<String> links = visited.attachment(link);
+                if (links != null && visited.replace(link, links, null)) {
+                    if (links == NOT_KEPT) {
+                        pageDownload(link, depth, false);
+                    } else {
+                        linkDownload(link, () -> links);
+                    }
+                }
+            }
         }
 
-        HostDownloader hostDownloader = hostMapper.computeIfAbsent(host, h -> new HostDownloader());
-        phaser.register();
-        hostDownloader.addPage(() -> {
+        /**
+         * Downloads the page and expands it; a page downloaded again after a shorter path to it has been found
+         * is not reported.
+         */
+        private void pageDownload(String link, int depth, boolean report) {
+            String host;
             try {
-                Document document = downloader.download(link);
-                linkDownload(document, phaser, linksPool, depth);
-                res.add(link);
-            } catch (IOException e) {
-                errors.put(link, e);
-            } finally {
-                phaser.arrive();
-                hostDownloader.runTasks();
+                host = URLUtils.getHost(link);
+            } catch (MalformedURLException e) {
+                report(() -> listener.failed(link, e));
+                return;
             }
-        });
-    }
 
-    private void linkDownload(Document document, Phaser phaser, ConcurrentLinkedQueue<String> linksPool, int depth) {
-        if (depth <= 1) {
-            return;
+            Admission hostDownloader = hostMapper.computeIfAbsent(host, h -> new Admission(perHost, admission::addPage));
+            pending.incrementAndGet();
+            hostDownloader.addPage(new PageTask(this, depth, sequence.getAndIncrement(), () -> {
+                try {
+                    if (!completion.isDone()) {
+                        Document document = downloader.download(link);
+                        if (report) {
+                            report(() -> listener.downloaded(link, document));
+                        }
+                        expand(link, document);
+                    }
+                } catch (IOException e) {
+                    // A page that fails to download again keeps no attachment: it has no links to follow
+                    if (report) {
+                        report(() -> listener.failed(link, e));
+                    }
+                } finally {
+                    hostDownloader.release();
+                    admission.release();
+                    arrive();
+                }
+            }));
         }
-        phaser.register();
-        extractors.submit(() -> {
+
+        /**
+         * Extracts the links of a downloaded page, unless it is at the last level,
+         * where the links are needed only if the page is reached again by a shorter path.
+         */
+        private void expand(String link, Document document) {
+            if (visited.depth(link) <= 1) {
+                visited.attach(link, NOT_KEPT);
+                if (visited.depth(link) <= 1 || !visited.replace(link, NOT_KEPT, null)) {
+                    return;
+                }
+            }
+            linkDownload(link, document);
+        }
+
+        /**
+         * Follows the links of a page taken over by the caller with the current depth of the page,
+         * and again if it is raised before the page is given up.
+         */
+        private void linkDownload(String url, Document document) {
+            if (completion.isDone()) {
+                return;
+            }
+            pending.incrementAndGet();
             try {
-                List<String> links = document.extractLinks();
-                linksPool.addAll(links);
-            } catch (IOException ignored) {
-            } finally {
-                phaser.arrive();
+                extractors.execute(() -> {
+                    try {
+                        List<String> links;
+                        try {
+                            links = document.extractLinks();
+                        } catch (IOException e) {
+                            links = List.of();
+                        }
+                        int expanded = 0;
+                        while (!completion.isDone()) {
+                            final int current = visited.depth(url);
+                            if (current > expanded && current > 1) {
+                                for (String link : links) {
+                                    visit(link, current - 1);
+                                }
+                                expanded = current;
+                            }
+                            // Only the starting URL is deeper than maxDepth - 1, so nothing raises such a page
+                            final List<String> kept = current < maxDepth - 1 ? links : NOT_KEPT;
+                            visited.attach(url, kept);
+                            if (visited.depth(url) == current || !visited.replace(url, kept, null)) {
+                                return;
+                            }
+                        }
+                    } finally {
+                        arrive();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                reject(e);
             }
-        });
+        }
+
+        private void report(Runnable event) {
+            if (completion.isDone()) {
+                return;
+            }
+            try {
+                event.run();
+            } catch (Throwable e) {
+                // Errors too, or they would kill the downloader thread and leave the crawl running
+                completion.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Fails the crawl because a task of it has been refused, and gives up the pending count of the task.
+         */
+        private void reject(RejectedExecutionException e) {
+            completion.completeExceptionally(e);
+            arrive();
+        }
+
+        private void arrive() {
+            if (pending.decrementAndGet() == 0) {
+                completion.complete(null);
+            }
+        }
     }
 }
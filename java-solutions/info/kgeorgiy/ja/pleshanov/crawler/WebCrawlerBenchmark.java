@@ -0,0 +1,113 @@
+package info.kgeorgiy.ja.pleshanov.crawler;
+
+import info.kgeorgiy.java.advanced.crawler.Document;
+import info.kgeorgiy.java.advanced.crawler.Downloader;
+import info.kgeorgiy.java.advanced.crawler.Result;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares the throughput of {@link WebCrawler} with a fixed pool of downloaders and with virtual threads,
+ * both allowed the same number of downloads at once.
+ * <p>
+ * The crawled site is generated: {@code pages} pages spread over {@code hosts} hosts, every page linking
+ * to {@code links} random pages. Every download sleeps for {@code latency} milliseconds, as if waiting
+ * for the network. Every mode crawls the site once as a warmup and then {@code runs} times.
+ * <p>
+ * Usage: {@code WebCrawlerBenchmark pages hosts links latency depth downloads perHost [runs]},
+ * where {@code downloads} is both the size of the fixed pool and the limit of downloads at once
+ * on virtual threads. On runtimes without virtual threads the second mode runs on a cached pool
+ * of platform threads, so it says nothing about virtual threads; the output names the mode used.
+ *
+ * @author Pleshanov Pavel
+ */
+public class WebCrawlerBenchmark {
+    private static final int EXTRACTORS = 2;
+
+    private final List<List<String>> site = new ArrayList<>();
+    private final int hosts;
+    private final long latency;
+
+    private WebCrawlerBenchmark(final int pages, final int hosts, final int links, final long latency) {
+        this.hosts = hosts;
+        this.latency = latency;
+        final Random random = new Random(pages);
+        for (int i = 0; i < pages; ++i) {
+            final List<String> pageLinks = new ArrayList<>();
+            for (int j = 0; j < links; ++j) {
+                pageLinks.add(url(random.nextInt(pages)));
+            }
+            site.add(pageLinks);
+        }
+    }
+
+    public static void main(final String[] args) {
+        if (args == null || args.length < 7) {
+            System.err.println("Usage: WebCrawlerBenchmark pages hosts links latency depth downloads perHost [runs]");
+            return;
+        }
+        try {
+            final WebCrawlerBenchmark benchmark = new WebCrawlerBenchmark(Integer.parseInt(args[0]),
+                    Integer.parseInt(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]));
+            final int depth = Integer.parseInt(args[4]);
+            final int downloads = Integer.parseInt(args[5]);
+            final int perHost = Integer.parseInt(args[6]);
+            final int runs = args.length > 7 ? Integer.parseInt(args[7]) : 3;
+
+            try (final WebCrawler crawler = new WebCrawler(benchmark.downloader(), downloads, EXTRACTORS, perHost)) {
+                benchmark.run(String.format("fixed pool of %d platform threads", downloads), crawler, depth, runs);
+            }
+            try (final WebCrawler crawler = WebCrawler.withVirtualThreads(benchmark.downloader(),
+                    downloads, EXTRACTORS, perHost)) {
+                benchmark.run(String.format("%s, %d at once",
+                        hasVirtualThreads() ? "virtual threads" : "cached platform pool (no virtual threads)",
+                        downloads), crawler, depth, runs);
+            }
+        } catch (final IllegalArgumentException e) {
+            System.err.println("Wrong arguments: " + e.getMessage());
+        }
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private void run(final String mode, final WebCrawler crawler, final int depth, final int runs) {
+        crawler.download(url(0), depth);
+        for (int run = 1; run <= runs; ++run) {
+            final long start = System.nanoTime();
+            final Result result = crawler.download(url(0), depth);
+            final double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+            System.out.printf("%s, run %d: %d pages in %.2f s, %.0f pages/s%n", mode, run,
+                    result.getDownloaded().size(), seconds, result.getDownloaded().size() / seconds);
+        }
+    }
+
+    private Downloader downloader() {
+        return url -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading " + url);
+            }
+            final List<String> links = site.get(Integer.parseInt(url.substring(url.lastIndexOf('/') + 2)));
+            return (Document) () -> links;
+        };
+    }
+
+    private String url(final int page) {
+        return "http://host" + page % hosts + ".example.com/p" + page;
+    }
+}
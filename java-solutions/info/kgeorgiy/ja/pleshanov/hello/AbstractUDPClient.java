@@ -13,6 +13,7 @@ import java.util.stream.IntStream;
  */
 public abstract class AbstractUDPClient implements HelloClient {
     protected static final Charset UTF_8 = StandardCharsets.UTF_8;
+    protected static final int BUFFER_SIZE = 4096;
 
     protected static void main(HelloClient client, String[] args) {
         Utils.validateArgs(args, 5);
@@ -20,8 +21,4 @@ public abstract class AbstractUDPClient implements HelloClient {
 
         client.run(args[0], Integer.parseInt(args[1]), args[2], Integer.parseInt(args[3]), Integer.parseInt(args[3]));
     }
-
-    protected static String getRequestBody(final String prefix, final int currThread, final int currRequest) {
-        return String.format("%s%d_%d", prefix, currThread, currRequest);
-    }
 }
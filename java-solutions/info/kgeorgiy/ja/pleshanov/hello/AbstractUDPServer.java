@@ -2,9 +2,14 @@ package info.kgeorgiy.ja.pleshanov.hello;
 
 import info.kgeorgiy.java.advanced.hello.HelloServer;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
 
@@ -16,6 +21,35 @@ import java.util.stream.IntStream;
 public abstract class AbstractUDPServer implements HelloServer {
     protected ExecutorService executorService;
     protected static final Charset UTF_8 = StandardCharsets.UTF_8;
+    protected static final String RESPONSE_PREFIX = "Hello, ";
+    protected static final byte[] RESPONSE_PREFIX_BYTES = RESPONSE_PREFIX.getBytes(UTF_8);
+    protected static final int BUFFER_SIZE = 4096;
+    protected static final int RESPONSE_SIZE = RESPONSE_PREFIX_BYTES.length + BUFFER_SIZE;
+    /**
+     * Requests are received into buffers one byte longer than the longest accepted request,
+     * so that a datagram filling the buffer is known to be truncated.
+     */
+    protected static final int RECEIVE_SIZE = BUFFER_SIZE + 1;
+    protected static final int HANDLER_QUEUE_CAPACITY = 1024;
+    protected final ServerMetrics metrics = new ServerMetrics();
+    protected final RateLimitedLogger errors = new RateLimitedLogger(10);
+    protected final DatagramHandler handler;
+
+    /**
+     * Creates a server replying with {@code "Hello, "} followed by the request.
+     */
+    protected AbstractUDPServer() {
+        this(DatagramHandler.hello());
+    }
+
+    /**
+     * Creates a server replying with the responses computed by the handler.
+     *
+     * @param handler the handler computing responses
+     */
+    protected AbstractUDPServer(final DatagramHandler handler) {
+        this.handler = handler;
+    }
 
     protected static void main(HelloServer server, String[] args) {
         Utils.validateArgs(args, 2);
@@ -24,7 +58,74 @@ public abstract class AbstractUDPServer implements HelloServer {
         server.start(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
     }
 
-    protected static String getResponseBody(final String requestBody) {
-        return "Hello, " + requestBody;
+    /**
+     * Returns the metrics of this server. They are collected from the creation of the server;
+     * call {@link ServerMetrics#register} to expose them through JMX.
+     *
+     * @return the metrics of this server
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Writes the response of the handler to the request into the given buffer and flips it for sending.
+     * Requests the handler drops or fails on are counted in the metrics: a {@link DatagramHandler.MalformedRequestException}
+     * counts as a decode error, any other exception as a handler error.
+     *
+     * @param request  the request bytes, between position and limit
+     * @param response the buffer to write the response into
+     * @return {@code true} if the response should be sent
+     */
+    protected boolean handle(final ByteBuffer request, final ByteBuffer response) {
+        response.clear();
+        try {
+            if (handler.handle(request, response)) {
+                response.flip();
+                return true;
+            }
+            metrics.recordDrop();
+        } catch (final DatagramHandler.MalformedRequestException e) {
+            metrics.recordDecodeError();
+            errors.log("Malformed request: %s", e.getMessage());
+        } catch (final RuntimeException e) {
+            metrics.recordHandlerError();
+            errors.log("Error occurred while handling request: %s", e);
+        }
+        return false;
+    }
+
+    /**
+     * Returns a pool to run the handler on, with a queue of {@link #HANDLER_QUEUE_CAPACITY} requests per thread.
+     *
+     * @param threads the number of threads, or {@code 0} to run the handler inline on the I/O threads
+     * @return the pool, or {@code null} if {@code threads} is {@code 0}
+     */
+    protected static ExecutorService newHandlerPool(final int threads) {
+        return threads == 0 ? null : new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(HANDLER_QUEUE_CAPACITY * threads));
+    }
+
+    /**
+     * Runs the task on the handler pool. If the pool is full or shut down, the request is dropped.
+     *
+     * @param handlers the handler pool
+     * @param task     the task handling one request
+     * @return {@code false} if the request was dropped
+     */
+    protected boolean offload(final ExecutorService handlers, final Runnable task) {
+        try {
+            handlers.execute(task);
+            return true;
+        } catch (final RejectedExecutionException e) {
+            metrics.recordDrop();
+            return false;
+        }
+    }
+
+    protected static void checkHandlerThreads(final int handlerThreads) {
+        if (handlerThreads < 0) {
+            throw new IllegalArgumentException("The number of handler threads must not be negative.");
+        }
     }
 }
@@ -0,0 +1,123 @@
+package info.kgeorgiy.ja.pleshanov.hello;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * Builds the requests of one client thread and validates the responses to them without allocation.
+ * <p>
+ * A request is the prefix followed by the thread number, {@code '_'} and the request number,
+ * written as ASCII digits into a reused buffer. A response is accepted in place if it consists of
+ * {@code "Hello, "}, the same prefix, thread number and {@code '_'}, and ASCII digits. Any other response,
+ * for example one with non-ASCII digits, is checked by {@link Utils#parseResponse}, so exactly the same
+ * responses are accepted as before, only the common case is faster.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @author Pleshanov Pavel
+ */
+class ClientCodec {
+    private static final int MAX_DIGITS = 9;
+
+    private final String prefix;
+    private final int thread;
+    private final byte[] request;
+    private final ByteBuffer requestBuffer;
+    private final int requestNumberOffset;
+    private final byte[] expectedResponse;
+
+    /**
+     * Creates a codec for the requests of the given thread.
+     *
+     * @param prefix the request prefix
+     * @param thread the thread number
+     */
+    ClientCodec(final String prefix, final int thread) {
+        this.prefix = prefix;
+        this.thread = thread;
+        final byte[] head = (prefix + thread + "_").getBytes(StandardCharsets.UTF_8);
+        this.request = Arrays.copyOf(head, head.length + String.valueOf(Integer.MAX_VALUE).length());
+        this.requestBuffer = ByteBuffer.wrap(request);
+        this.requestNumberOffset = head.length;
+        this.expectedResponse = ("Hello, " + prefix + thread + "_").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the request into the reused buffer.
+     *
+     * @param number the non-negative request number
+     * @return the buffer with the request between position and limit, valid until the next call
+     */
+    ByteBuffer request(final int number) {
+        return requestBuffer.clear().limit(putDigits(request, requestNumberOffset, number));
+    }
+
+    /**
+     * Returns the length of the request written into {@link #requestArray()}.
+     *
+     * @param number the non-negative request number
+     */
+    int writeRequest(final int number) {
+        return putDigits(request, requestNumberOffset, number);
+    }
+
+    /**
+     * Returns the array the requests are written into.
+     */
+    byte[] requestArray() {
+        return request;
+    }
+
+    /**
+     * Returns the number of the request of this thread that the response answers, or {@code -1}.
+     *
+     * @param data   the array with the response
+     * @param offset the offset of the response
+     * @param length the length of the response
+     */
+    int parseResponse(final byte[] data, final int offset, final int length) {
+        final int from = offset + expectedResponse.length;
+        final int to = offset + length;
+        if (from >= to || to - from > MAX_DIGITS
+                || !Arrays.equals(data, offset, from, expectedResponse, 0, expectedResponse.length)) {
+            return parseSlowly(data, offset, length);
+        }
+        int number = 0;
+        for (int i = from; i < to; ++i) {
+            final int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return parseSlowly(data, offset, length);
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+
+    /**
+     * Returns the number of the request of this thread that the response answers, or {@code -1}.
+     *
+     * @param response the heap buffer with the response between position and limit
+     */
+    int parseResponse(final ByteBuffer response) {
+        return parseResponse(response.array(), response.arrayOffset() + response.position(), response.remaining());
+    }
+
+    private int parseSlowly(final byte[] data, final int offset, final int length) {
+        return Utils.parseResponse(new String(data, offset, length, StandardCharsets.UTF_8), prefix, thread);
+    }
+
+    private static int putDigits(final byte[] data, final int offset, final int value) {
+        int end = offset + 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            ++end;
+        }
+        int rest = value;
+        for (int i = end - 1; i >= offset; --i) {
+            data[i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return end;
+    }
+}
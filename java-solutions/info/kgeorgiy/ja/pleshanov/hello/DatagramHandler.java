@@ -0,0 +1,146 @@
+package info.kgeorgiy.ja.pleshanov.hello;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Computes the response datagram of a UDP server from the request datagram.
+ * <p>
+ * A handler may be called by several threads at once. It works on buffers owned by the server,
+ * which are reused after the call, so it must not keep references to them.
+ * A handler that decodes the request into an object, handles it and encodes the result
+ * can be composed from stages with {@link #of}.
+ *
+ * @author Pleshanov Pavel
+ */
+@FunctionalInterface
+public interface DatagramHandler {
+    /**
+     * Writes the response to the request.
+     *
+     * @param request  the request bytes, between position and limit
+     * @param response the empty buffer to write the response into; the server flips it afterwards
+     * @return {@code true} if the response should be sent, {@code false} if the request should be dropped
+     */
+    boolean handle(ByteBuffer request, ByteBuffer response);
+
+    /**
+     * Returns the handler replying with {@code "Hello, "} followed by the request bytes.
+     *
+     * @return the Hello handler
+     */
+    static DatagramHandler hello() {
+        return (request, response) -> {
+            response.put(AbstractUDPServer.RESPONSE_PREFIX_BYTES).put(request);
+            return true;
+        };
+    }
+
+    /**
+     * Returns the handler that decodes the request, handles the decoded value and encodes the result.
+     * If the decoder or the handler returns {@code null}, the request is dropped.
+     *
+     * @param decoder the first stage, decoding the request bytes
+     * @param handler the second stage, computing the result from the decoded request
+     * @param encoder the last stage, writing the result into the response
+     * @param <T>     the type of decoded requests
+     * @param <R>     the type of results
+     * @return the composed handler
+     */
+    static <T, R> DatagramHandler of(final Decoder<? extends T> decoder,
+                                     final Function<? super T, ? extends R> handler,
+                                     final Encoder<? super R> encoder) {
+        return (request, response) -> {
+            final T value = decoder.decode(request);
+            if (value == null) {
+                return false;
+            }
+            final R result = handler.apply(value);
+            if (result == null) {
+                return false;
+            }
+            encoder.encode(result, response);
+            return true;
+        };
+    }
+
+    /**
+     * Returns the handler that decodes the request and encodes the response as UTF-8 strings.
+     *
+     * @param handler the function computing the response body from the request body
+     * @return the composed handler
+     */
+    static DatagramHandler ofStrings(final UnaryOperator<String> handler) {
+        return of(Decoder.utf8(), handler, Encoder.utf8());
+    }
+
+    /**
+     * Decoding stage of a {@link DatagramHandler}.
+     *
+     * A decoder reports malformed requests with a {@link MalformedRequestException}; the server counts
+     * them apart from other failures of the handler.
+     *
+     * @param <T> the type of decoded requests
+     */
+    @FunctionalInterface
+    interface Decoder<T> {
+        /**
+         * Decodes the request.
+         *
+         * @param request the request bytes, between position and limit
+         * @return the decoded request, or {@code null} if the request should be dropped
+         * @throws MalformedRequestException if the request is malformed
+         */
+        T decode(ByteBuffer request);
+
+        /**
+         * Returns the decoder of UTF-8 strings.
+         *
+         * @return the UTF-8 decoder
+         */
+        static Decoder<String> utf8() {
+            return request -> StandardCharsets.UTF_8.decode(request).toString();
+        }
+    }
+
+    /**
+     * Thrown by a handler, usually by its {@link Decoder}, when the request cannot be decoded.
+     */
+    class MalformedRequestException extends RuntimeException {
+        /**
+         * Creates an exception with the given description of the request.
+         *
+         * @param message what is wrong with the request
+         */
+        public MalformedRequestException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Encoding stage of a {@link DatagramHandler}.
+     *
+     * @param <R> the type of results
+     */
+    @FunctionalInterface
+    interface Encoder<R> {
+        /**
+         * Writes the result into the response.
+         *
+         * @param result   the result to encode
+         * @param response the buffer to write into
+         */
+        void encode(R result, ByteBuffer response);
+
+        /**
+         * Returns the encoder of UTF-8 strings.
+         *
+         * @return the UTF-8 encoder
+         */
+        static Encoder<String> utf8() {
+            return (result, response) -> response.put(result.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package info.kgeorgiy.ja.pleshanov.hello;
+
+import info.kgeorgiy.java.advanced.hello.HelloServer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+
+/**
+ * Load generator for Hello UDP servers built on {@link HelloUDPNonblockingClient}.
+ * <p>
+ * Responses are not printed. Every run reports the throughput, the share of requests that had to be
+ * retransmitted and latency percentiles. Without a rate, every channel keeps {@code window} requests
+ * in flight (closed loop). With a rate, new requests are sent on a fixed schedule (open loop) and
+ * latencies count from the scheduled time.
+ * <p>
+ * Usage: {@code HelloUDPBenchmark [-server name threads] host port channels window requests [rate [runs]]},
+ * where {@code name} is one of {@code blocking}, {@code batched}, {@code nonblocking}, {@code offloaded}
+ * (the handler on a pool of two threads) and {@code virtual}, or {@code blocking-5ms} or {@code virtual-5ms}:
+ * the same servers with a handler that sleeps for 5 milliseconds before replying, as if waiting for a lookup.
+ * {@code port} may be a comma-separated list of ports, each optionally followed by {@code *weight};
+ * the channels are then spread over the ports in proportion to the weights, and every run also reports
+ * the statistics of every port. With {@code -server}, a server is started in this process on every port
+ * and closed afterwards.
+ * The first run is a warmup and is not reported. The metrics of a server started in this process
+ * are printed after all the runs.
+ *
+ * @author Pleshanov Pavel
+ */
+public class HelloUDPBenchmark {
+    private static final Map<String, Supplier<HelloServer>> SERVERS = Map.of(
+            "blocking", HelloUDPServer::new,
+            "batched", () -> new HelloUDPServer(32),
+            "nonblocking", HelloUDPNonblockingServer::new,
+            "offloaded", () -> new HelloUDPNonblockingServer(DatagramHandler.hello(), 2),
+            "virtual", HelloUDPVirtualThreadServer::new,
+            "blocking-5ms", () -> new HelloUDPServer(sleeping(5), 1, 0),
+            "virtual-5ms", () -> new HelloUDPVirtualThreadServer(sleeping(5))
+    );
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private long retransmitted;
+
+    private static DatagramHandler sleeping(final long millis) {
+        return DatagramHandler.ofStrings(request -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return AbstractUDPServer.RESPONSE_PREFIX + request;
+        });
+    }
+
+    public static void main(final String[] args) {
+        if (args == null || args.length < 5) {
+            System.err.println("Usage: HelloUDPBenchmark [-server name threads] host port channels window requests [rate [runs]]");
+            return;
+        }
+
+        final int i = "-server".equals(args[0]) ? 3 : 0;
+        final List<HelloServer> servers = new ArrayList<>();
+        try {
+            if (args.length < i + 5) {
+                System.err.println("Wrong arguments!");
+                return;
+            }
+            final String host = args[i];
+            final List<HelloUDPNonblockingClient.Target> targets = new ArrayList<>();
+            for (final String port : args[i + 1].split(",")) {
+                final String[] portAndWeight = port.split("\\*");
+                targets.add(new HelloUDPNonblockingClient.Target(
+                        new InetSocketAddress(host, Integer.parseInt(portAndWeight[0])),
+                        portAndWeight.length > 1 ? Integer.parseInt(portAndWeight[1]) : 1));
+            }
+            if (i > 0) {
+                final Supplier<HelloServer> factory = SERVERS.get(args[1]);
+                if (factory == null) {
+                    System.err.println("Unknown server " + args[1] + ", expected one of " + SERVERS.keySet());
+                    return;
+                }
+                for (final HelloUDPNonblockingClient.Target target : targets) {
+                    final HelloServer server = factory.get();
+                    servers.add(server);
+                    server.start(((InetSocketAddress) target.address()).getPort(), Integer.parseInt(args[2]));
+                }
+            }
+            final int channels = Integer.parseInt(args[i + 2]);
+            final int window = Integer.parseInt(args[i + 3]);
+            final int requests = Integer.parseInt(args[i + 4]);
+            final double rate = args.length > i + 5 ? Double.parseDouble(args[i + 5]) : 0;
+            final int runs = args.length > i + 6 ? Integer.parseInt(args[i + 6]) : 3;
+
+            System.out.printf("%d channels, window %d, %d requests per channel, %s%n", channels, window, requests,
+                    rate > 0 ? String.format("%.0f requests/s", rate) : "closed loop");
+            new HelloUDPBenchmark().run(targets, channels, window, requests, rate);
+            for (int run = 1; run <= runs; ++run) {
+                System.out.printf("run %d: %s%n", run, new HelloUDPBenchmark().run(targets, channels, window, requests, rate));
+            }
+            for (final HelloServer server : servers) {
+                if (!(server instanceof AbstractUDPServer udpServer)) {
+                    continue;
+                }
+                final ServerMetrics.Snapshot metrics = udpServer.getMetrics().snapshot();
+                System.out.printf("server: %d in, %d out, %d receive errors, %d decode errors,"
+                                + " %d handler errors, %d send errors, %d drops, %d wakeups, service time us: p50 %.1f, p99 %.1f, max %.1f%n",
+                        metrics.packetsIn(), metrics.packetsOut(), metrics.receiveErrors(), metrics.decodeErrors(),
+                        metrics.handlerErrors(), metrics.sendErrors(), metrics.drops(), metrics.selectorWakeups(),
+                        metrics.serviceTimes().getValueAtPercentile(50) / 1000.0,
+                        metrics.serviceTimes().getValueAtPercentile(99) / 1000.0,
+                        metrics.serviceTimes().getMax() / 1000.0);
+            }
+        } catch (final IllegalArgumentException e) {
+            System.err.println("Wrong arguments: " + e.getMessage());
+        } finally {
+            servers.forEach(HelloServer::close);
+        }
+    }
+
+    /**
+     * Sends {@code channels * requests} requests and returns the summary of the run.
+     */
+    private String run(final List<HelloUDPNonblockingClient.Target> targets, final int channels, final int window,
+                       final int requests, final double rate) {
+        final HelloUDPNonblockingClient client = new HelloUDPNonblockingClient(window, rate,
+                (response, latency, retransmissions) -> {
+                    histogram.record(latency);
+                    retransmitted += retransmissions > 0 ? 1 : 0;
+                });
+        final long start = System.nanoTime();
+        final List<HelloUDPNonblockingClient.TargetStatistics> statistics =
+                client.run(targets, "bench_", channels, requests);
+        final double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        final StringBuilder perTarget = new StringBuilder();
+        if (statistics.size() > 1) {
+            for (final HelloUDPNonblockingClient.TargetStatistics target : statistics) {
+                final LatencyHistogram latencies = target.getLatencies();
+                perTarget.append(String.format("%n  %s: %d channels, %d completed, %.0f requests/s,"
+                                + " %d retransmitted, latency us: p50 %.1f, p99 %.1f",
+                        target.getTarget().address(), target.getChannels(), target.getCompleted(),
+                        target.getCompleted() / seconds, target.getRetransmitted(),
+                        latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0));
+            }
+        }
+
+        final long completed = histogram.getCount();
+        return perTarget.insert(0, String.format("%d/%d completed, %.0f requests/s, %.2f%% retransmitted, latency us:"
+                        + " mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+                completed, (long) channels * requests, completed / seconds,
+                completed == 0 ? 0 : 100.0 * retransmitted / completed,
+                histogram.getMean() / 1000,
+                micros(50), micros(90), micros(99), micros(99.9),
+                histogram.getMax() / 1000.0)).toString();
+    }
+
+    private double micros(final double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+}
@@ -40,22 +40,20 @@ public class HelloUDPClient extends AbstractUDPClient {
                             new byte[socketBufferSize],
                             socketBufferSize
                     );
+                    final ClientCodec codec = new ClientCodec(prefix, currThread);
+                    final DatagramPacket request = new DatagramPacket(codec.requestArray(), 0, socketAddress);
 
                     for (int req = 1; req <= requests; ++req) {
-                        final String requestBody = getRequestBody(prefix, currThread, req);
-                        final DatagramPacket request = new DatagramPacket(
-                                requestBody.getBytes(UTF_8),
-                                requestBody.length(),
-                                socketAddress
-                        );
+                        request.setLength(codec.writeRequest(req));
                         while (true) {
                             try {
                                 socket.send(request);
+                                response.setLength(socketBufferSize);
                                 socket.receive(response);
-                                final String responseBody = new String(response.getData(), response.getOffset(),
-                                        response.getLength(), UTF_8);
-                                if (Utils.validateResponse(responseBody, prefix, currThread, req)) {
-                                    System.out.println(responseBody);
+                                if (codec.parseResponse(response.getData(), response.getOffset(),
+                                        response.getLength()) == req) {
+                                    System.out.println(new String(response.getData(), response.getOffset(),
+                                            response.getLength(), UTF_8));
                                     break;
                                 }
                             } catch (SocketTimeoutException e) {
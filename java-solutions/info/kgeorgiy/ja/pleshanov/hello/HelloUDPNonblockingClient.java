@@ -7,20 +7,87 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * HelloUDPNonblockingClient class.
+ * <p>
+ * Every channel keeps up to {@code window} requests in flight. Responses are matched to requests
+ * by their number, so they may arrive in any order.
+ * <p>
+ * Every sent request has its own retransmission deadline. The timeout is estimated per channel
+ * from the measured round-trip times as in RFC 6298, doubles on every retransmission of the same
+ * request and is randomly stretched by up to a quarter, so that channels do not retransmit in lockstep.
+ * <p>
+ * New requests may be paced to a fixed total rate. The latency of a paced request is then measured
+ * from the moment it was due, not from when the window let it go, so delays caused by a slow server
+ * are not hidden from the {@link Listener}.
+ * <p>
+ * One client can also drive several servers at once: its channels are spread over a list of
+ * {@link Target}s in proportion to their weights, all on one selector, and statistics are kept per target.
  *
  * @author Pleshanov Pavel
  */
 public class HelloUDPNonblockingClient extends AbstractUDPClient {
+    private static final long INITIAL_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+    private static final int MAX_BACKOFF = 8;
+
+    private final int window;
+    private final double rate;
+    private final Listener listener;
+
     public static void main(final String[] args) {
         main(new HelloUDPNonblockingClient(), args);
     }
 
+    /**
+     * Creates a client that waits for the response to every request before sending the next one.
+     */
+    public HelloUDPNonblockingClient() {
+        this(1);
+    }
+
+    /**
+     * Creates a client that keeps up to {@code window} requests per channel in flight.
+     *
+     * @param window the maximum number of requests per channel waiting for a response
+     * @throws IllegalArgumentException if {@code window} is less than 1
+     */
+    public HelloUDPNonblockingClient(final int window) {
+        this(window, 0, (response, latency, retransmissions) -> System.out.println(UTF_8.decode(response)));
+    }
+
+    /**
+     * Creates a client that reports responses to the listener instead of printing them.
+     *
+     * @param window   the maximum number of requests per channel waiting for a response
+     * @param rate     the total number of new requests per second over all channels, or {@code 0} for no limit
+     * @param listener the listener notified once per request when its response arrives
+     * @throws IllegalArgumentException if {@code window} is less than 1 or {@code rate} is negative
+     */
+    HelloUDPNonblockingClient(final int window, final double rate, final Listener listener) {
+        if (window < 1) {
+            throw new IllegalArgumentException("The window must be greater than 0.");
+        }
+        if (!(rate >= 0)) {
+            throw new IllegalArgumentException("The rate must not be negative.");
+        }
+        this.window = window;
+        this.rate = rate;
+        this.listener = listener;
+    }
+
     /**
      * Runs a client that sends requests to the specified host and port using UDP protocol.
      *
@@ -31,101 +98,396 @@ public class HelloUDPNonblockingClient extends AbstractUDPClient {
      */
     @Override
     public void run(final String host, final int port, final String prefix, final int threads, final int requests) {
-        final SocketAddress socketAddress = new InetSocketAddress(host, port);
+        run(List.of(new Target(new InetSocketAddress(host, port), 1)), prefix, threads, requests);
+    }
+
+    /**
+     * Runs a client that spreads its channels over the targets in proportion to their weights.
+     * Channels are numbered from {@code 1} to {@code threads} across all targets.
+     *
+     * @param targets  the servers to send requests to
+     * @param prefix   the prefix to include in the request message
+     * @param threads  the total number of channels
+     * @param requests the number of requests to send per channel
+     * @return the statistics of every target, in the order of the targets
+     * @throws IllegalArgumentException if there are no targets
+     */
+    public List<TargetStatistics> run(final List<Target> targets, final String prefix, final int threads,
+                                      final int requests) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("There must be at least one target.");
+        }
+        final List<TargetStatistics> statistics = targets.stream().map(TargetStatistics::new).toList();
+        final int[] assignment = assign(targets, threads);
+        final Queue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+        final Pacer pacer = new Pacer(rate, System.nanoTime());
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
 
         try (final Selector selector = Selector.open()) {
             for (int i = 1; i <= threads; ++i) {
+                final TargetStatistics target = statistics.get(assignment[i - 1]);
                 try {
                     final DatagramChannel datagramChannel = DatagramChannel.open();
-                    datagramChannel.connect(socketAddress)
+                    datagramChannel.connect(target.getTarget().address())
                             .configureBlocking(false)
-                            .register(selector, SelectionKey.OP_WRITE, new Attachment(i, 1));
+                            .register(selector, SelectionKey.OP_WRITE,
+                                    new Attachment(requests, new ClientCodec(prefix, i), pacer, target));
+                    ++target.channels;
                 } catch (final IOException e) {
                     System.err.println("Error occurred while opening DatagramChannel");
                 }
             }
 
             while (!Thread.interrupted() && !selector.keys().isEmpty()) {
-                Utils.select(selector);
+                final long deadline = pacer.wakeup(timers.isEmpty() ? Long.MAX_VALUE : timers.peek().deadline());
+                Utils.select(selector, deadline == Long.MAX_VALUE ? 1000
+                        : Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime() + 999_999)));
                 final Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                if (!selectedKeys.isEmpty()) {
-                    for (final Iterator<SelectionKey> iterator = selectedKeys.iterator(); iterator.hasNext(); ) {
-                        final SelectionKey selectionKey = iterator.next();
-                        final DatagramChannel datagramChannel = (DatagramChannel) selectionKey.channel();
+                for (final Iterator<SelectionKey> iterator = selectedKeys.iterator(); iterator.hasNext(); ) {
+                    final SelectionKey selectionKey = iterator.next();
+                    final DatagramChannel datagramChannel = (DatagramChannel) selectionKey.channel();
+                    final Attachment attachment = (Attachment) selectionKey.attachment();
+                    if (selectionKey.isReadable() && receive(datagramChannel, attachment, buffer)) {
+                        try {
+                            datagramChannel.close();
+                        } catch (final IOException e) {
+                            System.err.println("Error occurred while closing DatagramChannel");
+                        }
+                    } else {
                         if (selectionKey.isWritable()) {
-                            send(datagramChannel, selectionKey, prefix);
-                        } else if (selectionKey.isReadable() &&
-                                receive(datagramChannel, selectionKey, prefix, requests)) {
-                            try {
-                                datagramChannel.close();
-                            } catch (final IOException e) {
-                                System.err.println("Error occurred while closing DatagramChannel");
-                            }
+                            send(selectionKey, attachment, timers);
+                        }
+                        updateInterest(selectionKey, attachment);
+                    }
+                    iterator.remove();
+                }
+
+                final long now = System.nanoTime();
+                if (pacer.isLimited() && pacer.isReady(now)) {
+                    for (final SelectionKey selectionKey : selector.keys()) {
+                        if (selectionKey.isValid()) {
+                            updateInterest(selectionKey, (Attachment) selectionKey.attachment());
                         }
-                        iterator.remove();
                     }
-                } else {
-                    selector.keys().forEach(key -> key.interestOps(SelectionKey.OP_WRITE));
+                }
+                while (!timers.isEmpty() && timers.peek().deadline() <= now) {
+                    final Timer timer = timers.poll();
+                    if (timer.key().isValid() && ((Attachment) timer.key().attachment()).expire(timer)) {
+                        updateInterest(timer.key(), (Attachment) timer.key().attachment());
+                    }
                 }
             }
         } catch (final IOException e) {
             System.err.println("Error occurred while opening Selector");
         }
+        return statistics;
+    }
 
+    /**
+     * Returns the index of the target of every channel, by smooth weighted round-robin,
+     * so that channels of every target are spread evenly over the channel numbers.
+     */
+    private static int[] assign(final List<Target> targets, final int threads) {
+        final int[] assignment = new int[threads];
+        final long[] current = new long[targets.size()];
+        long total = 0;
+        for (final Target target : targets) {
+            total += target.weight();
+        }
+        for (int i = 0; i < threads; ++i) {
+            int best = 0;
+            for (int j = 0; j < current.length; ++j) {
+                current[j] += targets.get(j).weight();
+                if (current[j] > current[best]) {
+                    best = j;
+                }
+            }
+            current[best] -= total;
+            assignment[i] = best;
+        }
+        return assignment;
     }
 
-    private boolean receive(final DatagramChannel datagramChannel, final SelectionKey selectionKey, final String prefix,
-                            final int totalRequests) {
-        final Attachment attachment = (Attachment) selectionKey.attachment();
+    private static void updateInterest(final SelectionKey selectionKey, final Attachment attachment) {
+        selectionKey.interestOps(attachment.canSend()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
 
-        int currRequest = attachment.getRequest();
-        final int currThread = attachment.getThread();
-        final ByteBuffer buffer = ByteBuffer.allocate(500);
+    private boolean receive(final DatagramChannel datagramChannel, final Attachment attachment,
+                            final ByteBuffer buffer) {
         try {
-            datagramChannel.receive(buffer);
+            datagramChannel.receive(buffer.clear());
         } catch (final IOException e) {
             System.err.println(e.getMessage());
         }
 
-        final String responseBody = UTF_8.decode(buffer.flip()).toString();
-        if (Utils.validateResponse(responseBody, prefix, currThread, currRequest)) {
-            System.out.println(responseBody);
-            attachment.putRequest(++currRequest);
+        final int request = attachment.getCodec().parseResponse(buffer.flip());
+        final long now = System.nanoTime();
+        if (attachment.acknowledge(request, now)) {
+            final long latency = attachment.latency(request, now);
+            final int retransmissions = attachment.retransmissions(request);
+            attachment.getStatistics().record(latency, retransmissions);
+            listener.response(buffer, latency, retransmissions);
         }
-        selectionKey.interestOps(SelectionKey.OP_WRITE);
-        return currRequest == (totalRequests + 1);
+        return attachment.isCompleted();
     }
 
-    private void send(final DatagramChannel datagramChannel, final SelectionKey selectionKey, final String prefix) {
-        final Attachment attachment = (Attachment) selectionKey.attachment();
-        final String requestBody = getRequestBody(prefix, attachment.getThread(), attachment.getRequest());
-        try {
-            datagramChannel.write(ByteBuffer.wrap(requestBody.getBytes(UTF_8)));
-        } catch (final IOException e) {
-            System.err.println(e.getMessage());
+    private void send(final SelectionKey selectionKey, final Attachment attachment, final Queue<Timer> timers) {
+        final DatagramChannel datagramChannel = (DatagramChannel) selectionKey.channel();
+        int request;
+        while ((request = attachment.nextToSend()) > 0) {
+            try {
+                datagramChannel.write(attachment.getCodec().request(request));
+            } catch (final IOException e) {
+                System.err.println(e.getMessage());
+            }
+            timers.add(attachment.sent(selectionKey, request, System.nanoTime()));
         }
-        selectionKey.interestOps(SelectionKey.OP_READ);
     }
 
-    private static class Attachment {
-        private final int thread;
-        private int request;
+    /**
+     * Receives the responses of {@link HelloUDPNonblockingClient}.
+     */
+    @FunctionalInterface
+    interface Listener {
+        /**
+         * Called once per request, when its first valid response arrives.
+         *
+         * @param response        the response bytes, valid only during the call
+         * @param latency         nanoseconds from the moment the request was due to the response
+         * @param retransmissions how many times the request was sent again
+         */
+        void response(ByteBuffer response, long latency, int retransmissions);
+    }
+
+    /**
+     * Server to send requests to.
+     *
+     * @param address the address of the server
+     * @param weight  the share of channels sent to this server, relative to the other targets
+     */
+    public record Target(SocketAddress address, int weight) {
+        /**
+         * @throws IllegalArgumentException if {@code weight} is not positive
+         */
+        public Target {
+            if (weight < 1) {
+                throw new IllegalArgumentException("The weight must be greater than 0.");
+            }
+        }
+    }
 
-        public Attachment(final int thread, final int request) {
-            this.thread = thread;
-            this.request = request;
+    /**
+     * Statistics of the requests sent to one {@link Target} during one run.
+     */
+    public static class TargetStatistics {
+        private final Target target;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private int channels;
+        private long retransmitted;
+
+        private TargetStatistics(final Target target) {
+            this.target = target;
         }
 
-        public int getThread() {
-            return thread;
+        private void record(final long latency, final int retransmissions) {
+            latencies.record(latency);
+            retransmitted += retransmissions > 0 ? 1 : 0;
         }
 
-        public int getRequest() {
-            return request;
+        public Target getTarget() {
+            return target;
         }
 
-        public void putRequest(final int request) {
-            this.request = request;
+        /**
+         * @return the number of channels sending to the target
+         */
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * @return the number of requests answered by the target
+         */
+        public long getCompleted() {
+            return latencies.getCount();
+        }
+
+        /**
+         * @return the number of answered requests that had to be retransmitted
+         */
+        public long getRetransmitted() {
+            return retransmitted;
+        }
+
+        /**
+         * @return the latencies of the answered requests, in nanoseconds
+         */
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+    }
+
+    private record Timer(long deadline, SelectionKey key, int request, int attempt) {
+    }
+
+    /**
+     * Hands out send times for new requests at a fixed rate, or immediately if the rate is not limited.
+     */
+    private static class Pacer {
+        private final long interval;
+        private long next;
+
+        private Pacer(final double rate, final long start) {
+            this.interval = rate > 0 ? Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / rate)) : 0;
+            this.next = start;
+        }
+
+        private boolean isLimited() {
+            return interval > 0;
+        }
+
+        private boolean isReady(final long now) {
+            return interval == 0 || next <= now;
+        }
+
+        /**
+         * Returns the time the new request was due.
+         */
+        private long acquire(final long now) {
+            if (interval == 0) {
+                return now;
+            }
+            final long due = next;
+            next += interval;
+            return due;
+        }
+
+        /**
+         * Returns the earlier of the given deadline and the next send time, if the latter is still ahead.
+         */
+        private long wakeup(final long deadline) {
+            return interval > 0 && next - System.nanoTime() > 0 ? Math.min(deadline, next) : deadline;
+        }
+    }
+
+    private class Attachment {
+        private final ClientCodec codec;
+        private final int requests;
+        private final boolean[] acknowledged;
+        private final int[] attempts;
+        private final long[] sentAt;
+        private final long[] dueAt;
+        private final Pacer pacer;
+        private final TargetStatistics statistics;
+        private final Queue<Integer> retransmissions = new ArrayDeque<>();
+        private int next = 1;
+        private int inFlight;
+        private int remaining;
+
+        private long smoothedRtt = -1;
+        private long rttVariation;
+        private long timeout = INITIAL_TIMEOUT;
+
+        public Attachment(final int requests, final ClientCodec codec, final Pacer pacer,
+                          final TargetStatistics statistics) {
+            this.codec = codec;
+            this.requests = requests;
+            this.acknowledged = new boolean[requests + 1];
+            this.attempts = new int[requests + 1];
+            this.sentAt = new long[requests + 1];
+            this.dueAt = new long[requests + 1];
+            this.pacer = pacer;
+            this.statistics = statistics;
+            this.remaining = requests;
+        }
+
+        public ClientCodec getCodec() {
+            return codec;
+        }
+
+        public TargetStatistics getStatistics() {
+            return statistics;
+        }
+
+        public boolean canSend() {
+            while (!retransmissions.isEmpty() && acknowledged[retransmissions.peek()]) {
+                retransmissions.poll();
+            }
+            return !retransmissions.isEmpty()
+                    || inFlight < window && next <= requests && pacer.isReady(System.nanoTime());
+        }
+
+        /**
+         * Returns the request to send now, preferring retransmissions, or {@code -1} if there is none.
+         */
+        public int nextToSend() {
+            if (!canSend()) {
+                return -1;
+            }
+            if (!retransmissions.isEmpty()) {
+                return retransmissions.poll();
+            }
+            ++inFlight;
+            dueAt[next] = pacer.acquire(System.nanoTime());
+            return next++;
+        }
+
+        public Timer sent(final SelectionKey selectionKey, final int request, final long now) {
+            sentAt[request] = now;
+            final long backoff = Math.min(MAX_TIMEOUT, timeout << Math.min(attempts[request], MAX_BACKOFF));
+            final long jitter = ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+            return new Timer(now + backoff + jitter, selectionKey, request, attempts[request]);
+        }
+
+        public boolean acknowledge(final int request, final long now) {
+            if (request < 1 || request >= next || acknowledged[request]) {
+                return false;
+            }
+            acknowledged[request] = true;
+            --inFlight;
+            --remaining;
+            // Karn's algorithm: the response to a retransmitted request cannot be matched to one send.
+            if (attempts[request] == 0) {
+                sample(now - sentAt[request]);
+            }
+            return true;
+        }
+
+        /**
+         * Schedules the request of the timer for retransmission if it is still waiting for that timer.
+         */
+        public boolean expire(final Timer timer) {
+            if (acknowledged[timer.request()] || attempts[timer.request()] != timer.attempt()) {
+                return false;
+            }
+            ++attempts[timer.request()];
+            retransmissions.add(timer.request());
+            return true;
+        }
+
+        public long latency(final int request, final long now) {
+            return now - dueAt[request];
+        }
+
+        public int retransmissions(final int request) {
+            return attempts[request];
+        }
+
+        public boolean isCompleted() {
+            return remaining == 0;
+        }
+
+        private void sample(final long rtt) {
+            if (smoothedRtt < 0) {
+                smoothedRtt = rtt;
+                rttVariation = rtt / 2;
+            } else {
+                rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+                smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+            }
+            timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, smoothedRtt + 4 * rttVariation));
         }
     }
 }
@@ -3,28 +3,75 @@ package info.kgeorgiy.ja.pleshanov.hello;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 
 /**
  * HelloUDPNonblockingServer class.
+ * <p>
+ * Runs one selector thread per requested thread, each with its own channel bound to the same port
+ * with {@code SO_REUSEPORT}, so the kernel spreads incoming datagrams across the threads.
+ * If the platform does not support {@code SO_REUSEPORT}, a single selector thread is used.
+ * <p>
+ * Replies that cannot be sent at once because the socket send buffer is full wait in a bounded
+ * per-channel queue and are sent when the channel becomes writable. While that queue is full,
+ * the channel stops reading, so under overload requests are dropped by the kernel on arrival
+ * instead of replies being lost after the request has been handled.
+ * <p>
+ * The handler runs on the selector threads, or, if handler threads are requested, on a separate pool.
+ * Replies computed by the pool are handed back to the selector thread that received the request,
+ * and requests being handled count against the capacity of its queue. Such requests are received
+ * straight into preallocated slots holding the request and response buffers, as many as the queue holds,
+ * so handing them off allocates nothing per datagram.
  *
  * @author Pleshanov Pavel
  */
 public class HelloUDPNonblockingServer extends AbstractUDPServer {
-    private Selector selector;
-    private DatagramChannel datagramChannel;
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final List<Reactor> reactors = new ArrayList<>();
+    private final int handlerThreads;
+    private ExecutorService handlers;
 
     public static void main(final String[] args) {
         main(new HelloUDPNonblockingServer(), args);
     }
 
+    /**
+     * Creates a server replying with {@code "Hello, "} followed by the request.
+     */
+    public HelloUDPNonblockingServer() {
+        this(DatagramHandler.hello(), 0);
+    }
+
+    /**
+     * Creates a server replying with the responses computed by the handler.
+     *
+     * @param handler        the handler computing responses
+     * @param handlerThreads the number of threads to run the handler on,
+     *                       or {@code 0} to run it on the selector threads
+     * @throws IllegalArgumentException if {@code handlerThreads} is negative
+     */
+    public HelloUDPNonblockingServer(final DatagramHandler handler, final int handlerThreads) {
+        super(handler);
+        checkHandlerThreads(handlerThreads);
+        this.handlerThreads = handlerThreads;
+    }
+
     /**
      * Starts a server on the specified port with the given number of threads.
      *
@@ -33,47 +80,19 @@ public class HelloUDPNonblockingServer extends AbstractUDPServer {
      */
     @Override
     public void start(final int port, final int threads) {
-        executorService = Executors.newSingleThreadExecutor();
-        try {
-            selector = Selector.open();
-        } catch (final IOException e) {
-            System.err.println("Error occurred while opening selector");
-        }
-        try {
-            final SocketAddress socketAddress = new InetSocketAddress(port);
-            datagramChannel = DatagramChannel.open();
-            datagramChannel.bind(socketAddress)
-                    .configureBlocking(false)
-                    .register(selector, SelectionKey.OP_READ);
-            executorService.submit(() -> {
-                while (!Thread.currentThread().isInterrupted()) {
-                    Utils.select(selector);
-                    final Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                    for (final Iterator<SelectionKey> iterator = selectedKeys.iterator(); iterator.hasNext(); ) {
-                        final SelectionKey selectionKey = iterator.next();
-                        if (selectionKey.isReadable()) {
-                            final DatagramChannel datagramChannel = (DatagramChannel) selectionKey.channel();
-                            final ByteBuffer byteBuffer = ByteBuffer.allocate(500);
-                            try {
-                                SocketAddress socketRecAddress = datagramChannel.receive(byteBuffer);
-                                final String responseBody = getResponseBody(
-                                        UTF_8.decode(byteBuffer.flip()).toString());
-                                try {
-                                    datagramChannel.send(ByteBuffer.wrap(
-                                            responseBody.getBytes(UTF_8)), socketRecAddress);
-                                } catch (final IOException e) {
-                                    System.err.println("Error occurred while sending response");
-                                }
-                            } catch (final IOException e) {
-                                System.err.println("Error occurred while receiving byteBuffer");
-                            }
-                        }
-                        iterator.remove();
-                    }
-                }
-            });
-        } catch (final IOException e) {
-            System.err.println("Error occurred while opening DatagramChannel");
+        final int reactorsCount = isReusePortSupported() ? threads : 1;
+        executorService = Executors.newFixedThreadPool(reactorsCount);
+        handlers = newHandlerPool(handlerThreads);
+        int boundPort = port;
+        for (int i = 0; i < reactorsCount; ++i) {
+            try {
+                final Reactor reactor = new Reactor(boundPort, reactorsCount > 1);
+                reactors.add(reactor);
+                boundPort = reactor.getPort();
+                executorService.submit(reactor::run);
+            } catch (final IOException e) {
+                System.err.println("Error occurred while opening DatagramChannel or Selector");
+            }
         }
     }
 
@@ -82,12 +101,239 @@ public class HelloUDPNonblockingServer extends AbstractUDPServer {
      */
     @Override
     public void close() {
-        try {
-            selector.close();
-            datagramChannel.close();
+        reactors.forEach(Reactor::close);
+        reactors.clear();
+        Utils.shutdownAndAwaitTermination(executorService);
+        if (handlers != null) {
+            Utils.shutdownAndAwaitTermination(handlers);
+        }
+        metrics.unregister();
+    }
+
+    private static boolean isReusePortSupported() {
+        try (final DatagramChannel datagramChannel = DatagramChannel.open()) {
+            return datagramChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
         } catch (final IOException e) {
-            System.err.println("Error occurred while closing selector or datagramChannel");
+            return false;
+        }
+    }
+
+    private class Reactor {
+        private final Selector selector;
+        private final DatagramChannel datagramChannel;
+        private final SelectionKey selectionKey;
+        /** Slots handled by the pool, waiting to be sent by this reactor. */
+        private final Queue<Slot> handled = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        /** Slots not in use, touched only by this reactor's thread. */
+        private final Deque<Slot> freeSlots = new ArrayDeque<>();
+        private int handling;
+        private final ByteBuffer request = ByteBuffer.allocateDirect(RECEIVE_SIZE);
+        private final ByteBuffer response = ByteBuffer.allocateDirect(RESPONSE_SIZE);
+        private final ByteBuffer[] queue = new ByteBuffer[QUEUE_CAPACITY];
+        private final SocketAddress[] queueAddresses = new SocketAddress[QUEUE_CAPACITY];
+        private final long[] queueReceivedAt = new long[QUEUE_CAPACITY];
+        private int queueHead;
+        private int queueSize;
+
+        private Reactor(final int port, final boolean reusePort) throws IOException {
+            selector = Selector.open();
+            try {
+                datagramChannel = DatagramChannel.open();
+                if (reusePort) {
+                    datagramChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                selectionKey = datagramChannel.bind(new InetSocketAddress(port))
+                        .configureBlocking(false)
+                        .register(selector, SelectionKey.OP_READ);
+            } catch (final IOException e) {
+                selector.close();
+                throw e;
+            }
+            final ByteBuffer queueBuffers = ByteBuffer.allocateDirect(QUEUE_CAPACITY * RESPONSE_SIZE);
+            for (int i = 0; i < QUEUE_CAPACITY; ++i) {
+                queue[i] = queueBuffers.slice(i * RESPONSE_SIZE, RESPONSE_SIZE);
+            }
+            if (handlers != null) {
+                final int slotSize = RECEIVE_SIZE + RESPONSE_SIZE;
+                final ByteBuffer slotBuffers = ByteBuffer.allocateDirect(QUEUE_CAPACITY * slotSize);
+                for (int i = 0; i < QUEUE_CAPACITY; ++i) {
+                    freeSlots.add(new Slot(slotBuffers.slice(i * slotSize, RECEIVE_SIZE),
+                            slotBuffers.slice(i * slotSize + RECEIVE_SIZE, RESPONSE_SIZE)));
+                }
+            }
+        }
+
+        private int getPort() throws IOException {
+            return ((InetSocketAddress) datagramChannel.getLocalAddress()).getPort();
+        }
+
+        private void run() {
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+                Utils.select(selector);
+                metrics.recordWakeup();
+                final Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                for (final Iterator<SelectionKey> iterator = selectedKeys.iterator(); iterator.hasNext(); ) {
+                    final SelectionKey selectedKey = iterator.next();
+                    if (selectedKey.isWritable()) {
+                        flush();
+                    }
+                    drainHandled();
+                    if (selectedKey.isReadable()) {
+                        receive();
+                    }
+                    iterator.remove();
+                }
+                drainHandled();
+                if (selectionKey.isValid()) {
+                    selectionKey.interestOps((hasRoom() ? SelectionKey.OP_READ : 0)
+                            | (queueSize > 0 ? SelectionKey.OP_WRITE : 0));
+                }
+            }
+        }
+
+        /**
+         * Returns whether another request may be received: queued replies and requests
+         * being handled by the pool must fit into the queue.
+         */
+        private boolean hasRoom() {
+            return queueSize + handling < QUEUE_CAPACITY;
+        }
+
+        private void receive() {
+            try {
+                SocketAddress socketRecAddress;
+                while (hasRoom()) {
+                    // There is a free slot: the slots in use and the queued replies fit into the queue
+                    final Slot slot = freeSlots.peek();
+                    final ByteBuffer request = slot == null ? this.request : slot.request;
+                    if ((socketRecAddress = datagramChannel.receive(request.clear())) == null) {
+                        return;
+                    }
+                    metrics.recordReceived(request.position());
+                    if (!request.hasRemaining()) {
+                        metrics.recordDecodeError();
+                        errors.log("Request from %s may be truncated, dropped", socketRecAddress);
+                        continue;
+                    }
+                    final long receivedAt = System.nanoTime();
+                    if (slot != null) {
+                        handleOnPool(freeSlots.pop(), socketRecAddress, receivedAt);
+                    } else if (handle(request.flip(), response)) {
+                        reply(response, socketRecAddress, receivedAt);
+                    }
+                }
+            } catch (final IOException e) {
+                if (datagramChannel.isOpen()) {
+                    metrics.recordReceiveError();
+                    errors.log("Error occurred while receiving request: %s", e.getMessage());
+                }
+            }
+        }
+
+        private void handleOnPool(final Slot slot, final SocketAddress address, final long receivedAt) {
+            slot.request.flip();
+            slot.address = address;
+            slot.receivedAt = receivedAt;
+            ++handling;
+            if (!offload(handlers, slot)) {
+                release(slot);
+            }
+        }
+
+        /**
+         * Sends the replies computed by the pool, or queues them if the socket send buffer is full,
+         * and frees their slots.
+         */
+        private void drainHandled() {
+            Slot slot;
+            while ((slot = handled.poll()) != null) {
+                if (slot.answered) {
+                    reply(slot.response, slot.address, slot.receivedAt);
+                }
+                release(slot);
+            }
+        }
+
+        private void release(final Slot slot) {
+            slot.address = null;
+            --handling;
+            freeSlots.push(slot);
+        }
+
+        /**
+         * Sends the reply, or queues it behind the replies waiting for the channel to become writable.
+         */
+        private void reply(final ByteBuffer reply, final SocketAddress address, final long receivedAt) {
+            if (queueSize > 0 || !send(reply, address, receivedAt)) {
+                final int tail = (queueHead + queueSize++) % QUEUE_CAPACITY;
+                queue[tail].clear().put(reply).flip();
+                queueAddresses[tail] = address;
+                queueReceivedAt[tail] = receivedAt;
+            }
+        }
+
+        private void flush() {
+            while (queueSize > 0 && send(queue[queueHead], queueAddresses[queueHead], queueReceivedAt[queueHead])) {
+                queueAddresses[queueHead] = null;
+                queueHead = (queueHead + 1) % QUEUE_CAPACITY;
+                --queueSize;
+            }
+        }
+
+        /**
+         * Returns {@code false} if the reply should be retried later because the socket send buffer is full.
+         * Replies that fail with an error are dropped.
+         */
+        private boolean send(final ByteBuffer reply, final SocketAddress address, final long receivedAt) {
+            try {
+                if (datagramChannel.send(reply, address) == 0) {
+                    return false;
+                }
+                metrics.recordSent(reply.limit());
+                metrics.recordServiceTime(System.nanoTime() - receivedAt);
+            } catch (final IOException e) {
+                metrics.recordSendError();
+                errors.log("Error occurred while sending response: %s", e.getMessage());
+            }
+            return true;
+        }
+
+        private void close() {
+            try {
+                selector.close();
+                datagramChannel.close();
+            } catch (final IOException e) {
+                System.err.println("Error occurred while closing selector or datagramChannel");
+            }
+        }
+
+        /**
+         * Request handed off to the pool, with the buffers it is handled in. The fields are written
+         * by the reactor before the slot is offloaded and by the pool before it is handed back.
+         */
+        private class Slot implements Runnable {
+            private final ByteBuffer request;
+            private final ByteBuffer response;
+            private SocketAddress address;
+            private long receivedAt;
+            private boolean answered;
+
+            private Slot(final ByteBuffer request, final ByteBuffer response) {
+                this.request = request;
+                this.response = response;
+            }
+
+            @Override
+            public void run() {
+                answered = false;
+                try {
+                    answered = handle(request, response);
+                } finally {
+                    // Never full: there are only as many slots as the queue holds
+                    handled.add(this);
+                    selector.wakeup();
+                }
+            }
         }
-        Utils.shutdownAndAwaitTermination(executorService);
     }
 }
@@ -3,23 +3,84 @@ package info.kgeorgiy.ja.pleshanov.hello;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 
 /**
  * HelloUDPServer class.
+ * <p>
+ * Every thread reuses its own request and response buffers. In batched mode, every thread drains
+ * up to {@code batchSize} datagrams per wakeup from a non-blocking {@link DatagramChannel}
+ * into a preallocated ring of buffers and then sends all the replies together.
+ * <p>
+ * The handler runs on the receiving thread, or, if handler threads are requested, on a separate pool
+ * that also sends the replies. In batched mode, such replies are dropped if the socket send buffer is full.
+ * <p>
+ * In batched mode every thread waits on the channel in its own selector, so all of them wake up for a datagram
+ * and race to receive it. That is the price of running the handler on all of them; when the handler runs
+ * on the pool instead, a single thread receives the datagrams.
  *
  * @author Pleshanov Pavel
  */
 public class HelloUDPServer extends AbstractUDPServer {
+    private final int batchSize;
+    private final int handlerThreads;
+    private final ThreadLocal<ByteBuffer> responseBuffers = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(RESPONSE_SIZE));
+    private ExecutorService handlers;
     private DatagramSocket socket;
+    private DatagramChannel datagramChannel;
 
 
     public static void main(String[] args) {
         main(new HelloUDPServer(), args);
     }
 
+    /**
+     * Creates a server that handles one datagram at a time.
+     */
+    public HelloUDPServer() {
+        this(1);
+    }
+
+    /**
+     * Creates a server that handles up to {@code batchSize} datagrams per wakeup in every thread.
+     *
+     * @param batchSize the maximum number of datagrams received before the replies are sent
+     * @throws IllegalArgumentException if {@code batchSize} is less than 1
+     */
+    public HelloUDPServer(final int batchSize) {
+        this(DatagramHandler.hello(), batchSize, 0);
+    }
+
+    /**
+     * Creates a server replying with the responses computed by the handler.
+     *
+     * @param handler        the handler computing responses
+     * @param batchSize      the maximum number of datagrams received before the replies are sent
+     * @param handlerThreads the number of threads to run the handler on,
+     *                       or {@code 0} to run it on the receiving threads
+     * @throws IllegalArgumentException if {@code batchSize} is less than 1 or {@code handlerThreads} is negative
+     */
+    public HelloUDPServer(final DatagramHandler handler, final int batchSize, final int handlerThreads) {
+        super(handler);
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be greater than 0.");
+        }
+        checkHandlerThreads(handlerThreads);
+        this.batchSize = batchSize;
+        this.handlerThreads = handlerThreads;
+    }
+
     /**
      * Starts a server on the specified port with the given number of threads.
      *
@@ -29,50 +90,219 @@ public class HelloUDPServer extends AbstractUDPServer {
     @Override
     public void start(int port, int threads) {
         executorService = Executors.newFixedThreadPool(threads);
+        handlers = newHandlerPool(handlerThreads);
+        if (batchSize > 1) {
+            try {
+                datagramChannel = DatagramChannel.open();
+                datagramChannel.bind(new InetSocketAddress(port)).configureBlocking(false);
+            } catch (final IOException e) {
+                System.err.println("Error occurred while opening DatagramChannel");
+                return;
+            }
+            // With a handler pool, more receiving threads would only wake up together and compete for the channel
+            for (int i = 0; i < (handlers == null ? threads : 1); ++i) {
+                executorService.submit(this::serveBatches);
+            }
+            return;
+        }
+
         try {
             socket = new DatagramSocket(port);
         } catch (final SocketException e) {
             System.err.println(e.getMessage());
+            return;
         }
 
         for (int i = 0; i < threads; ++i) {
             executorService.submit(() -> {
+                final byte[] requestData;
+                try {
+                    requestData = new byte[socket.getReceiveBufferSize() + 1];
+                } catch (final SocketException e) {
+                    System.err.println(e.getMessage());
+                    return;
+                }
+                final DatagramPacket request = new DatagramPacket(requestData, requestData.length);
+                final ByteBuffer requestBuffer = ByteBuffer.wrap(requestData);
+                final byte[] responseData = new byte[RESPONSE_PREFIX_BYTES.length + requestData.length];
+                final ByteBuffer responseBuffer = ByteBuffer.wrap(responseData);
+                final DatagramPacket response = new DatagramPacket(responseData, responseData.length);
+
                 while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
                     try {
-                        final int socketBufferSize = socket.getReceiveBufferSize();
-                        final DatagramPacket request = new DatagramPacket(
-                                new byte[socketBufferSize],
-                                socketBufferSize
-                        );
+                        request.setLength(requestData.length);
                         socket.receive(request);
-                        final String requestBody = new String(
-                                request.getData(), request.getOffset(),
-                                request.getLength(), UTF_8
-                        );
-                        final String responseBody = getResponseBody(requestBody);
-
-                        final DatagramPacket response = new DatagramPacket(
-                                responseBody.getBytes(UTF_8),
-                                responseBody.length(),
-                                request.getSocketAddress()
-                        );
+                    } catch (IOException e) {
+                        if (!socket.isClosed()) {
+                            metrics.recordReceiveError();
+                            errors.log("I/O error while receiving request: %s", e.getMessage());
+                        }
+                        continue;
+                    }
+                    final long received = System.nanoTime();
+                    metrics.recordReceived(request.getLength());
+                    if (request.getLength() == requestData.length) {
+                        metrics.recordDecodeError();
+                        errors.log("Request from %s may be truncated, dropped", request.getSocketAddress());
+                        continue;
+                    }
+                    if (handlers != null) {
+                        final ByteBuffer copy = ByteBuffer.wrap(Arrays.copyOf(requestData, request.getLength()));
+                        final SocketAddress address = request.getSocketAddress();
+                        offload(handlers, () -> reply(copy, address, received));
+                        continue;
+                    }
+                    if (!handle(requestBuffer.clear().limit(request.getLength()), responseBuffer)) {
+                        continue;
+                    }
+                    response.setLength(responseBuffer.limit());
+                    response.setSocketAddress(request.getSocketAddress());
+                    try {
                         socket.send(response);
-                    } catch (SocketException e) {
-                        System.err.println(e.getMessage());
+                        metrics.recordSent(response.getLength());
+                        metrics.recordServiceTime(System.nanoTime() - received);
                     } catch (IOException e) {
-                        System.err.println("I/O error while sending response" + e.getMessage());
+                        if (!socket.isClosed()) {
+                            metrics.recordSendError();
+                            errors.log("I/O error while sending response: %s", e.getMessage());
+                        }
                     }
                 }
             });
         }
     }
 
+    private void serveBatches() {
+        final ByteBuffer[] requests = new ByteBuffer[batchSize];
+        final ByteBuffer[] responses = new ByteBuffer[batchSize];
+        final SocketAddress[] addresses = new SocketAddress[batchSize];
+        final long[] receivedAt = new long[batchSize];
+        final ByteBuffer requestBuffers = ByteBuffer.allocateDirect(batchSize * RECEIVE_SIZE);
+        final ByteBuffer responseBuffers = ByteBuffer.allocateDirect(batchSize * RESPONSE_SIZE);
+        for (int i = 0; i < batchSize; ++i) {
+            requests[i] = requestBuffers.slice(i * RECEIVE_SIZE, RECEIVE_SIZE);
+            responses[i] = responseBuffers.slice(i * RESPONSE_SIZE, RESPONSE_SIZE);
+        }
+
+        try (final Selector selector = Selector.open()) {
+            final SelectionKey selectionKey = datagramChannel.register(selector, SelectionKey.OP_READ);
+            while (!Thread.currentThread().isInterrupted() && datagramChannel.isOpen()) {
+                Utils.select(selector);
+                metrics.recordWakeup();
+                selector.selectedKeys().clear();
+
+                // Datagrams taken in this wakeup, including the dropped and offloaded ones
+                int taken = 0;
+                int received = 0;
+                try {
+                    while (taken < batchSize
+                            && (addresses[received] = datagramChannel.receive(requests[received].clear())) != null) {
+                        ++taken;
+                        final ByteBuffer request = requests[received];
+                        metrics.recordReceived(request.position());
+                        if (!request.hasRemaining()) {
+                            metrics.recordDecodeError();
+                            errors.log("Request from %s may be truncated, dropped", addresses[received]);
+                            continue;
+                        }
+                        receivedAt[received] = System.nanoTime();
+                        if (handlers != null) {
+                            final ByteBuffer copy = ByteBuffer.allocate(request.flip().remaining()).put(request).flip();
+                            final SocketAddress address = addresses[received];
+                            final long time = receivedAt[received];
+                            offload(handlers, () -> reply(copy, address, time));
+                        } else if (handle(request.flip(), responses[received])) {
+                            ++received;
+                        }
+                    }
+                } catch (final IOException e) {
+                    if (datagramChannel.isOpen()) {
+                        metrics.recordReceiveError();
+                        errors.log("I/O error while receiving request: %s", e.getMessage());
+                    }
+                }
+                for (int i = 0; i < received; ++i) {
+                    try {
+                        while (datagramChannel.send(responses[i], addresses[i]) == 0) {
+                            selectionKey.interestOps(SelectionKey.OP_WRITE);
+                            Utils.select(selector);
+                            metrics.recordWakeup();
+                            selector.selectedKeys().clear();
+                        }
+                        metrics.recordSent(responses[i].limit());
+                        metrics.recordServiceTime(System.nanoTime() - receivedAt[i]);
+                    } catch (final IOException e) {
+                        if (datagramChannel.isOpen()) {
+                            metrics.recordSendError();
+                            errors.log("I/O error while sending response: %s", e.getMessage());
+                        } else {
+                            metrics.recordDrop();
+                        }
+                    }
+                }
+                Arrays.fill(addresses, null);
+                if (selectionKey.isValid()) {
+                    selectionKey.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        } catch (final IOException e) {
+            if (datagramChannel.isOpen()) {
+                System.err.println("Error occurred while opening Selector: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handles the request on a handler thread and sends the reply from it.
+     */
+    private void reply(final ByteBuffer request, final SocketAddress address, final long received) {
+        ByteBuffer response = responseBuffers.get();
+        if (response.capacity() < RESPONSE_PREFIX_BYTES.length + request.remaining()) {
+            response = ByteBuffer.allocate(RESPONSE_PREFIX_BYTES.length + request.remaining());
+            responseBuffers.set(response);
+        }
+        if (!handle(request, response)) {
+            return;
+        }
+        final int bytes = response.remaining();
+        try {
+            if (socket != null) {
+                socket.send(new DatagramPacket(response.array(), response.arrayOffset(), bytes, address));
+            } else if (datagramChannel.send(response, address) == 0) {
+                metrics.recordDrop();
+                return;
+            }
+            metrics.recordSent(bytes);
+            metrics.recordServiceTime(System.nanoTime() - received);
+        } catch (final IOException e) {
+            if (socket != null ? !socket.isClosed() : datagramChannel.isOpen()) {
+                metrics.recordSendError();
+                errors.log("I/O error while sending response: %s", e.getMessage());
+            } else {
+                metrics.recordDrop();
+            }
+        }
+    }
+
     /**
      * Closes the server, releasing any resources used.
      */
     @Override
     public void close() {
-        socket.close();
+        if (socket != null) {
+            socket.close();
+        }
+        if (datagramChannel != null) {
+            try {
+                datagramChannel.close();
+            } catch (final IOException e) {
+                System.err.println("Error occurred while closing datagramChannel");
+            }
+        }
         Utils.shutdownAndAwaitTermination(executorService);
+        if (handlers != null) {
+            Utils.shutdownAndAwaitTermination(handlers);
+        }
+        metrics.unregister();
     }
 }
@@ -0,0 +1,149 @@
+package info.kgeorgiy.ja.pleshanov.hello;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
+
+
+/**
+ * HelloUDPVirtualThreadServer class.
+ * <p>
+ * Receives datagrams on the given number of platform threads and hands every request off to its own
+ * virtual thread, so handlers that block do not limit the number of requests served concurrently.
+ * On runtimes without virtual threads, handlers run on a cached pool of platform threads.
+ * Either way the gain over a fixed number of threads comes from not bounding the number of handlers running
+ * at once; virtual threads only make that cheap, while the fallback pays a platform thread for each of them.
+ * {@link HelloUDPBenchmark} compares this server with {@link HelloUDPServer} running the same blocking handler.
+ *
+ * @author Pleshanov Pavel
+ */
+public class HelloUDPVirtualThreadServer extends AbstractUDPServer {
+    private ExecutorService handlers;
+    private DatagramSocket socket;
+
+    public static void main(String[] args) {
+        main(new HelloUDPVirtualThreadServer(), args);
+    }
+
+    /**
+     * Creates a server that replies with {@code "Hello, "} followed by the request.
+     */
+    public HelloUDPVirtualThreadServer() {
+        this(DatagramHandler.hello());
+    }
+
+    /**
+     * Creates a server that replies with the result of the given handler, which may block.
+     *
+     * @param handler the function computing the response body from the request body
+     */
+    public HelloUDPVirtualThreadServer(final UnaryOperator<String> handler) {
+        this(DatagramHandler.ofStrings(handler));
+    }
+
+    /**
+     * Creates a server that replies with the responses computed by the given handler, which may block.
+     *
+     * @param handler the handler computing responses
+     */
+    public HelloUDPVirtualThreadServer(final DatagramHandler handler) {
+        super(handler);
+    }
+
+    /**
+     * Starts a server on the specified port with the given number of threads.
+     *
+     * @param port    The port number on which the server should listen.
+     * @param threads The number of threads to use for receiving incoming requests.
+     */
+    @Override
+    public void start(int port, int threads) {
+        executorService = Executors.newFixedThreadPool(threads);
+        handlers = Utils.newVirtualThreadPerTaskExecutor();
+        try {
+            socket = new DatagramSocket(port);
+        } catch (final SocketException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        for (int i = 0; i < threads; ++i) {
+            executorService.submit(() -> {
+                final byte[] requestData;
+                try {
+                    requestData = new byte[socket.getReceiveBufferSize() + 1];
+                } catch (final SocketException e) {
+                    System.err.println(e.getMessage());
+                    return;
+                }
+                final DatagramPacket request = new DatagramPacket(requestData, requestData.length);
+
+                while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
+                    try {
+                        request.setLength(requestData.length);
+                        socket.receive(request);
+                    } catch (IOException e) {
+                        if (!socket.isClosed()) {
+                            metrics.recordReceiveError();
+                            errors.log("I/O error while receiving request: %s", e.getMessage());
+                        }
+                        continue;
+                    }
+                    final long received = System.nanoTime();
+                    metrics.recordReceived(request.getLength());
+                    if (request.getLength() == requestData.length) {
+                        metrics.recordDecodeError();
+                        errors.log("Request from %s may be truncated, dropped", request.getSocketAddress());
+                        continue;
+                    }
+                    final ByteBuffer requestBody = ByteBuffer.wrap(Arrays.copyOfRange(
+                            request.getData(), request.getOffset(),
+                            request.getOffset() + request.getLength()
+                    ));
+                    final SocketAddress address = request.getSocketAddress();
+                    offload(handlers, () -> reply(requestBody, address, received));
+                }
+            });
+        }
+    }
+
+    private void reply(final ByteBuffer requestBody, final SocketAddress address, final long received) {
+        final ByteBuffer response = ByteBuffer.allocate(Math.max(RESPONSE_SIZE,
+                RESPONSE_PREFIX_BYTES.length + requestBody.remaining()));
+        if (!handle(requestBody, response)) {
+            return;
+        }
+        try {
+            socket.send(new DatagramPacket(response.array(), response.limit(), address));
+            metrics.recordSent(response.limit());
+            metrics.recordServiceTime(System.nanoTime() - received);
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                metrics.recordSendError();
+                errors.log("I/O error while sending response: %s", e.getMessage());
+            } else {
+                metrics.recordDrop();
+            }
+        }
+    }
+
+    /**
+     * Closes the server, releasing any resources used.
+     */
+    @Override
+    public void close() {
+        if (socket != null) {
+            socket.close();
+        }
+        Utils.shutdownAndAwaitTermination(executorService);
+        Utils.shutdownAndAwaitTermination(handlers);
+        metrics.unregister();
+    }
+}
@@ -0,0 +1,169 @@
+package info.kgeorgiy.ja.pleshanov.hello;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values, usually latencies in nanoseconds, in the style of HdrHistogram.
+ * <p>
+ * Values below {@code 128} are counted exactly. Larger values fall into log-linear buckets:
+ * every power of two is split into {@code 64} equal sub-buckets, so a value is reported
+ * with a relative error below {@code 1/64}. Recording takes constant time and the histogram
+ * occupies a fixed amount of memory regardless of the recorded range.
+ * <p>
+ * Instances are not thread-safe; threads should record into their own histograms and {@link #add} them,
+ * or share a {@link Recorder}.
+ *
+ * @author Pleshanov Pavel
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Records one occurrence of the value. Negative values are recorded as {@code 0}.
+     *
+     * @param value the value to record
+     */
+    public void record(final long value) {
+        final long v = Math.max(0, value);
+        ++counts[index(v)];
+        ++count;
+        sum += v;
+        max = Math.max(max, v);
+    }
+
+    /**
+     * Adds all values recorded by another histogram to this one.
+     *
+     * @param other the histogram to add
+     */
+    public void add(final LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value below or at which the given percentage of the recorded values lie.
+     * The value is the upper bound of its bucket, but never exceeds the maximum recorded value.
+     *
+     * @param percentile the percentage, from {@code 0} to {@code 100}
+     * @return the value at the percentile, or {@code 0} if nothing has been recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, upperBound(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Thread-safe recorder of values, merged into a histogram on demand.
+     * <p>
+     * Recording takes no lock: the counts are split into stripes in the manner of {@link LongAdder},
+     * and every value goes to a random stripe, so threads recording at once rarely touch the same memory.
+     */
+    static class Recorder {
+        private static final int STRIPES = Math.min(8,
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+        private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Recorder() {
+            for (int i = 0; i < STRIPES; ++i) {
+                counts[i] = new AtomicLongArray(BUCKETS);
+            }
+        }
+
+        /**
+         * Records one occurrence of the value. Negative values are recorded as {@code 0}.
+         *
+         * @param value the value to record
+         */
+        void record(final long value) {
+            final long v = Math.max(0, value);
+            counts[ThreadLocalRandom.current().nextInt() & (STRIPES - 1)].getAndIncrement(index(v));
+            sum.add(v);
+            max.accumulate(v);
+        }
+
+        /**
+         * Adds the values recorded so far to the histogram. Values recorded meanwhile may be partially added.
+         *
+         * @param total the histogram to add the values to
+         */
+        void addTo(final LatencyHistogram total) {
+            for (final AtomicLongArray stripe : counts) {
+                for (int i = 0; i < BUCKETS; ++i) {
+                    final long c = stripe.get(i);
+                    total.counts[i] += c;
+                    total.count += c;
+                }
+            }
+            total.sum += sum.sum();
+            total.max = Math.max(total.max, max.get());
+        }
+    }
+
+    private static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
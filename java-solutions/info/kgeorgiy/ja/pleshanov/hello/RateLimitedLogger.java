@@ -0,0 +1,62 @@
+package info.kgeorgiy.ja.pleshanov.hello;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prints error messages to {@link System#err}, but no more than a given number per second.
+ * <p>
+ * Messages over the limit are counted and dropped without blocking or even being formatted, so a storm
+ * of bad packets does not make the server threads wait on the console or allocate. The number of dropped messages
+ * is printed with the first message of the next second.
+ *
+ * @author Pleshanov Pavel
+ */
+class RateLimitedLogger {
+    private static final long PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+    private final int messagesPerSecond;
+    private final AtomicLong periodStart = new AtomicLong(System.nanoTime());
+    private final AtomicInteger printed = new AtomicInteger();
+    private final AtomicInteger suppressed = new AtomicInteger();
+
+    /**
+     * Creates a logger printing up to the given number of messages per second.
+     *
+     * @param messagesPerSecond the maximum number of messages printed per second
+     */
+    RateLimitedLogger(final int messagesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    /**
+     * Prints the message, unless too many messages have been printed during the current second.
+     * The message is formatted only if it is printed, so dropping it costs no allocation.
+     *
+     * @param format the {@link String#format format} of the message
+     * @param arg    the argument of the format
+     */
+    void log(final String format, final Object arg) {
+        if (admit()) {
+            System.err.println(String.format(format, arg));
+        }
+    }
+
+    private boolean admit() {
+        final long now = System.nanoTime();
+        final long start = periodStart.get();
+        if (now - start >= PERIOD && periodStart.compareAndSet(start, now)) {
+            printed.set(0);
+            final int dropped = suppressed.getAndSet(0);
+            if (dropped > 0) {
+                System.err.println(dropped + " similar messages suppressed");
+            }
+        }
+        if (printed.getAndIncrement() < messagesPerSecond) {
+            return true;
+        }
+        suppressed.incrementAndGet();
+        return false;
+    }
+}
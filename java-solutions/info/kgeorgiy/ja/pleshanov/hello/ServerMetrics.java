@@ -0,0 +1,241 @@
+package info.kgeorgiy.ja.pleshanov.hello;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic, error and service time metrics of a Hello UDP server, available from {@link AbstractUDPServer#getMetrics()}.
+ * <p>
+ * Counters are {@link LongAdder}s, so threads updating them do not contend. Service times are recorded
+ * without locking by a {@link LatencyHistogram.Recorder} and merged into a histogram on snapshot;
+ * recording them may be {@linkplain #setServiceTimesEnabled turned off}.
+ *
+ * @author Pleshanov Pavel
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final double NANOS_PER_MICRO = 1e3;
+
+    private final long start = System.nanoTime();
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder receiveErrors = new LongAdder();
+    private final LongAdder decodeErrors = new LongAdder();
+    private final LongAdder handlerErrors = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final LongAdder selectorWakeups = new LongAdder();
+    private final LatencyHistogram.Recorder serviceTimes = new LatencyHistogram.Recorder();
+    private volatile boolean serviceTimesEnabled = true;
+    private ObjectName objectName;
+
+    void recordReceived(final int bytes) {
+        packetsIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    void recordSent(final int bytes) {
+        packetsOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    void recordReceiveError() {
+        receiveErrors.increment();
+    }
+
+    /**
+     * Records a request that is truncated or malformed and is therefore not answered.
+     */
+    void recordDecodeError() {
+        decodeErrors.increment();
+        drops.increment();
+    }
+
+    /**
+     * Records a request that is not answered because the handler has failed on it.
+     */
+    void recordHandlerError() {
+        handlerErrors.increment();
+        drops.increment();
+    }
+
+    /**
+     * Records a response that could not be sent.
+     */
+    void recordSendError() {
+        sendErrors.increment();
+        drops.increment();
+    }
+
+    /**
+     * Records a request that is not answered for a reason other than an error, for example because the server is closing.
+     */
+    void recordDrop() {
+        drops.increment();
+    }
+
+    void recordWakeup() {
+        selectorWakeups.increment();
+    }
+
+    /**
+     * Records the time from receiving a request to sending its response, unless service times are turned off.
+     *
+     * @param nanos the service time in nanoseconds
+     */
+    void recordServiceTime(final long nanos) {
+        if (serviceTimesEnabled) {
+            serviceTimes.record(nanos);
+        }
+    }
+
+    /**
+     * Returns a copy of the current values of all metrics.
+     * Differences between two snapshots give the rates over the interval between them.
+     *
+     * @return the snapshot of the metrics
+     */
+    public Snapshot snapshot() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        serviceTimes.addTo(histogram);
+        return new Snapshot(System.nanoTime() - start, packetsIn.sum(), packetsOut.sum(), bytesIn.sum(),
+                bytesOut.sum(), receiveErrors.sum(), decodeErrors.sum(), handlerErrors.sum(), sendErrors.sum(),
+                drops.sum(), selectorWakeups.sum(), histogram);
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server under
+     * {@code info.kgeorgiy.ja.pleshanov.hello:type=HelloServer,name=<name>}.
+     * They are unregistered when the server is closed.
+     *
+     * @param name the name distinguishing this server from the others
+     * @throws JMException if the name is invalid or already registered
+     */
+    public synchronized void register(final String name) throws JMException {
+        final ObjectName objectName = new ObjectName("info.kgeorgiy.ja.pleshanov.hello:type=HelloServer,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (final JMException e) {
+                System.err.println("Error occurred while unregistering metrics: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public long getPacketsIn() {
+        return packetsIn.sum();
+    }
+
+    @Override
+    public long getPacketsOut() {
+        return packetsOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getReceiveErrors() {
+        return receiveErrors.sum();
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return decodeErrors.sum();
+    }
+
+    @Override
+    public long getHandlerErrors() {
+        return handlerErrors.sum();
+    }
+
+    @Override
+    public long getSendErrors() {
+        return sendErrors.sum();
+    }
+
+    @Override
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    @Override
+    public long getSelectorWakeups() {
+        return selectorWakeups.sum();
+    }
+
+    @Override
+    public double getPacketsInPerSecond() {
+        return snapshot().packetsInPerSecond();
+    }
+
+    @Override
+    public boolean isServiceTimesEnabled() {
+        return serviceTimesEnabled;
+    }
+
+    @Override
+    public void setServiceTimesEnabled(final boolean enabled) {
+        serviceTimesEnabled = enabled;
+    }
+
+    @Override
+    public double getServiceTimeP50Micros() {
+        return snapshot().serviceTimes().getValueAtPercentile(50) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getServiceTimeP99Micros() {
+        return snapshot().serviceTimes().getValueAtPercentile(99) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getServiceTimeMaxMicros() {
+        return snapshot().serviceTimes().getMax() / NANOS_PER_MICRO;
+    }
+
+    /**
+     * Values of the metrics at some moment.
+     *
+     * @param uptimeNanos     the time since the server was created
+     * @param packetsIn       the number of datagrams received
+     * @param packetsOut      the number of datagrams sent
+     * @param bytesIn         the number of bytes received
+     * @param bytesOut        the number of bytes sent
+     * @param receiveErrors   the number of failed receive calls
+     * @param decodeErrors    the number of requests that were truncated or malformed
+     * @param handlerErrors   the number of requests the handler failed on
+     * @param sendErrors      the number of failed send calls
+     * @param drops           the number of received requests that were not answered
+     * @param selectorWakeups the number of times a selector returned
+     * @param serviceTimes    the times from receiving a request to sending its response, in nanoseconds
+     */
+    public record Snapshot(long uptimeNanos, long packetsIn, long packetsOut, long bytesIn, long bytesOut,
+                           long receiveErrors, long decodeErrors, long handlerErrors, long sendErrors, long drops,
+                           long selectorWakeups, LatencyHistogram serviceTimes) {
+        /**
+         * @return the average number of datagrams received per second
+         */
+        public double packetsInPerSecond() {
+            return packetsIn * 1e9 / Math.max(1, uptimeNanos);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package info.kgeorgiy.ja.pleshanov.hello;
+
+/**
+ * JMX view of the {@link ServerMetrics} of a Hello UDP server.
+ *
+ * @author Pleshanov Pavel
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * @return the number of datagrams received
+     */
+    long getPacketsIn();
+
+    /**
+     * @return the number of datagrams sent
+     */
+    long getPacketsOut();
+
+    /**
+     * @return the number of bytes received
+     */
+    long getBytesIn();
+
+    /**
+     * @return the number of bytes sent
+     */
+    long getBytesOut();
+
+    /**
+     * @return the number of failed receive calls
+     */
+    long getReceiveErrors();
+
+    /**
+     * @return the number of requests that were truncated or malformed
+     */
+    long getDecodeErrors();
+
+    /**
+     * @return the number of requests the handler failed on
+     */
+    long getHandlerErrors();
+
+    /**
+     * @return the number of failed send calls
+     */
+    long getSendErrors();
+
+    /**
+     * @return the number of received requests that were not answered
+     */
+    long getDrops();
+
+    /**
+     * @return the number of times a selector returned, for servers that use selectors
+     */
+    long getSelectorWakeups();
+
+    /**
+     * @return the average number of datagrams received per second since the server was created
+     */
+    double getPacketsInPerSecond();
+
+    /**
+     * @return whether service times are recorded
+     */
+    boolean isServiceTimesEnabled();
+
+    /**
+     * Turns recording of service times on or off. The times recorded so far are kept.
+     *
+     * @param enabled whether service times should be recorded
+     */
+    void setServiceTimesEnabled(boolean enabled);
+
+    /**
+     * @return the median time from receiving a request to sending its response, in microseconds
+     */
+    double getServiceTimeP50Micros();
+
+    /**
+     * @return the 99th percentile of the time from receiving a request to sending its response, in microseconds
+     */
+    double getServiceTimeP99Micros();
+
+    /**
+     * @return the maximum time from receiving a request to sending its response, in microseconds
+     */
+    double getServiceTimeMaxMicros();
+}
@@ -6,6 +6,7 @@ import java.nio.channels.Selector;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class Utils {
@@ -31,23 +32,46 @@ public class Utils {
         }
     }
 
+    /**
+     * Returns an executor that starts a new virtual thread for each task, or, on runtimes without
+     * virtual threads, a cached pool of platform threads, which is likewise unbounded.
+     */
+    protected static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     public static boolean validateResponse(final String responseBody, final String prefix,
                                            final int thread, final int req) {
+        return parseResponse(responseBody, prefix, thread) == req;
+    }
+
+    /**
+     * Returns the number of the request of the given thread that the response answers,
+     * or {@code -1} if it is not a valid response for this thread.
+     */
+    public static int parseResponse(final String responseBody, final String prefix, final int thread) {
 
         final String included = "Hello, " + prefix;
 
         try {
             var params = responseBody.substring(included.length()).split("_");
-            return params.length == 2 &&
-                    Integer.parseInt(params[0]) == thread && Integer.parseInt(params[1]) == req;
+            return params.length == 2 && Integer.parseInt(params[0]) == thread ? Integer.parseInt(params[1]) : -1;
         } catch (NumberFormatException | IndexOutOfBoundsException ignored) {
-            return false;
+            return -1;
         }
     }
 
     public static void select(Selector selector) {
+        select(selector, 1000);
+    }
+
+    public static void select(Selector selector, long timeout) {
         try {
-            selector.select(1000);
+            selector.select(timeout);
         } catch (final IOException e) {
             System.err.println(e.getMessage());
         }
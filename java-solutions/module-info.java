@@ -8,6 +8,9 @@ module info.kgeorgiy.ja.pleshanov.implementor {
     requires info.kgeorgiy.java.advanced.crawler;
     requires info.kgeorgiy.java.advanced.hello;
     requires java.compiler;
+    requires java.management;
 
     exports info.kgeorgiy.ja.pleshanov.implementor;
+    exports info.kgeorgiy.ja.pleshanov.concurrent to java.management;
+    exports info.kgeorgiy.ja.pleshanov.hello to java.management;
 }
\ No newline at end of file